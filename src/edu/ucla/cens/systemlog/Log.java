@@ -1,70 +1,227 @@
 package edu.ucla.cens.systemlog;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
 import android.content.ComponentName;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.os.RemoteException;
 
 
-
+/**
+ * Logging facade that sends log messages to the SystemLog service,
+ * or to the Android log when SystemLog is not connected.
+ *
+ * In asynchronous mode a log call only appends the message to a
+ * lock-free ring buffer. A background thread drains the buffer to
+ * SystemLog in batches, so the binder calls leave the caller's thread.
+ * The thread sleeps while the buffer is empty and is woken by the
+ * call that adds the first message, so it costs no wakeups when
+ * nothing is logged.
+ * The outcome of the registration of each tag is cached, failures
+ * included, so a tag costs at most two calls per connection.
+ * Messages below the level set with setLevel(), INFO by default, are
+ * dropped before any work; callers that build long messages should
+ * check isLoggable() before building them.
+ */
 public class Log
 {
     private static final String DEFAULT_APP_NAME = "default";
     private static final String TAG = "CENS.SystemLog";
 
-	private static ISystemLog sLogger;
-	
-	private static boolean sConnected = false;
+    /** Log levels, with the values of android.util.Log */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /** Capacity of the ring buffer, a power of two */
+    private static final int RING_SIZE = 1024;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /** Time the drain thread waits for a claimed slot to be
+     * written, in nanoseconds */
+    private static final long SLOT_WAIT = 10L * 1000L * 1000L;
+
+	private static volatile ISystemLog sLogger;
+
+	private static volatile boolean sConnected = false;
 
     private static String sAppName = DEFAULT_APP_NAME;
 
     private static String sUserId;
 
+    private static volatile int sLevel = INFO;
+
+    private static volatile boolean sAsync = false;
+
+    /** Tags that have been registered with the connected SystemLog,
+     * mapped to false if the registration failed */
+    private static final ConcurrentHashMap<String, Boolean> sRegistered
+        = new ConcurrentHashMap<String, Boolean>();
+
+    /** Ring buffer of the messages waiting to be sent */
+    private static final AtomicReferenceArray<Entry> sRing
+        = new AtomicReferenceArray<Entry>(RING_SIZE);
+
+    /** Next position to write, claimed by the callers */
+    private static final AtomicLong sTail = new AtomicLong();
+
+    /** Next position to read, only advanced by the drain thread */
+    private static final AtomicLong sHead = new AtomicLong();
+
+    /** Number of messages dropped because the buffer was full */
+    private static final AtomicLong sDropped = new AtomicLong();
+
+    private static Thread sDrainThread;
+
+
+    /**
+     * A log message waiting in the ring buffer.
+     */
+    private static class Entry
+    {
+        final int level;
+        final String tag;
+        final String message;
+
+        Entry(int level, String tag, String message)
+        {
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+        }
+    }
+
+
     public static void setAppName(String name)
     {
         sAppName = name;
     }
 
 
-		
-    public static ServiceConnection SystemLogConnection 
-        = new ServiceConnection() 
+    /**
+     * Sets the lowest level of the messages that are logged.
+     *
+     * @param       level       one of VERBOSE, DEBUG, INFO, WARN or ERROR
+     */
+    public static void setLevel(int level)
     {
-        public void onServiceConnected(ComponentName className, 
-                IBinder service) 
+        sLevel = level;
+    }
+
+
+    /**
+     * Returns true if messages of the given level are logged.
+     *
+     * @param       level       one of VERBOSE, DEBUG, INFO, WARN or ERROR
+     * @return                  true if the level is logged
+     */
+    public static boolean isLoggable(int level)
+    {
+        return level >= sLevel;
+    }
+
+
+    /**
+     * Switches between sending the messages from the caller's thread
+     * and queueing them for the drain thread.
+     *
+     * @param       async       true to queue the messages
+     */
+    public static synchronized void setAsync(boolean async)
+    {
+        sAsync = async;
+
+        if (async && (sDrainThread == null))
+        {
+            sDrainThread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    while (true)
+                    {
+                        // A producer that finds the buffer empty
+                        // unparks this thread. Only this thread moves
+                        // the head, so once the buffer is seen empty
+                        // the next message unparks it, and a permit
+                        // given before the park makes it return at
+                        // once.
+                        if (!drain())
+                            LockSupport.parkNanos(SLOT_WAIT);
+                        else if (sHead.get() == sTail.get())
+                            LockSupport.park();
+                    }
+                }
+            }, "SystemLogDrain");
+            sDrainThread.setDaemon(true);
+            sDrainThread.start();
+        }
+        else if (!async)
+        {
+            drain();
+        }
+    }
+
+
+    /**
+     * Returns the number of messages that were dropped because the
+     * ring buffer was full.
+     */
+    public static long getDroppedCount()
+    {
+        return sDropped.get();
+    }
+
+
+    public static ServiceConnection SystemLogConnection
+        = new ServiceConnection()
+    {
+        public void onServiceConnected(ComponentName className,
+                IBinder service)
         {
+            sRegistered.clear();
             sLogger = ISystemLog.Stub.asInterface(service);
             sConnected = true;
         }
 
-        public void onServiceDisconnected(ComponentName className) 
+        public void onServiceDisconnected(ComponentName className)
         {
             sLogger = null;
             sConnected = false;
+            sRegistered.clear();
         }
     };
-    
-    public static void register(String tag) 
+
+    public static void register(String tag)
     {
-    	if (sConnected)
+        ISystemLog logger = sLogger;
+
+    	if (sConnected && (logger != null))
     	{
 	    	try
 	    	{
-	    		sLogger.registerLogger(tag, sAppName);
-	    	} 
+	    		sRegistered.put(tag, 
+                        logger.registerLogger(tag, sAppName));
+	    	}
 	    	catch (RemoteException re)
 	    	{
-	    		android.util.Log.e(TAG, 
+                sRegistered.put(tag, Boolean.FALSE);
+	    		android.util.Log.e(TAG,
                         "Remote Exception when trying to register tag"
                         + tag, re);
 	    	}
     	}
 		else
 		{
-			android.util.Log.i(TAG, 
+			android.util.Log.i(TAG,
                     "Not connected to SystemLog. Could not register "
                     + tag);
-		}    	
+		}
     }
 
 
@@ -75,12 +232,20 @@ public class Log
 
     public static boolean isRegistered(String tag)
     {
+        Boolean registered = sRegistered.get(tag);
+        if (registered != null)
+            return registered.booleanValue();
+
     	boolean res = false;
-    	if (sConnected)
+        ISystemLog logger = sLogger;
+
+    	if (sConnected && (logger != null))
     	{
 	    	try
 	    	{
-	    		res =  sLogger.isRegistered(tag);
+	    		res =  logger.isRegistered(tag);
+                if (res)
+                    sRegistered.put(tag, Boolean.TRUE);
 	    	}
 	    	catch (RemoteException re)
 	    	{
@@ -96,143 +261,181 @@ public class Log
     	return res;
     }
 
-	
+
     public static void i (String tag, String message)
     {
-    	if (sConnected)
-    	{
-	    	try
-	    	{
-                if (!sLogger.isRegistered(tag))
-                    register(tag);
-
-	    		sLogger.info(tag, message);
-	    	}
-	    	catch (RemoteException re)
-	    	{
-	    		android.util.Log.e(TAG, "Remote Exception", re);
-	    	}
-    	}
-		else
-		{
-			android.util.Log.i(tag, message);
-		}
+        log(INFO, tag, message);
     }
-    
+
     public static void d (String tag, String message)
     {
-    	if (sConnected)
-    	{
-	    	try
-	    	{
-                if (!sLogger.isRegistered(tag))
-                    register(tag);
-
-	    		sLogger.debug(tag, message);
-	    	}
-	    	catch (RemoteException re)
-	    	{
-	    		android.util.Log.e(TAG, "Remote Exception", re);
-	    	}
-    	}
-		else
-		{
-			android.util.Log.d(tag, message);
-		}
+        log(DEBUG, tag, message);
     }
-    
 
-    
     public static void e (String tag, String message, Exception e)
     {
-    	if (sConnected)
-    	{
-	    	try
-	    	{
-                if (!sLogger.isRegistered(tag))
-                    register(tag);
+        if (!isLoggable(ERROR))
+            return;
 
-	    		sLogger.error(tag, message + e.getMessage());
-	    	}
-	    	catch (RemoteException re)
-	    	{
-	    		android.util.Log.e(TAG, "Remote Exception", re);
-	    	}
-    	}
+    	if (sConnected)
+            log(ERROR, tag, message + e.getMessage());
     	else
-    	{
     		android.util.Log.e(tag, message, e);
-    	}
     }
 
-
     public static void e (String tag, String message)
     {
-    	if (sConnected)
-    	{
-	    	try
-	    	{
-                if (!sLogger.isRegistered(tag))
-                    register(tag);
+        log(ERROR, tag, message);
+    }
 
-	    		sLogger.error(tag, message);
-	    	}
-	    	catch (RemoteException re)
-	    	{
-	    		android.util.Log.e(TAG, "Remote Exception", re);
-	    	}
-    	}
-    	else
-    	{
-    		android.util.Log.e(tag, message);
-    	}
+    public static void v (String tag, String message)
+    {
+        log(VERBOSE, tag, message);
     }
 
+    public static void w (String tag, String message)
+    {
+        log(WARN, tag, message);
+    }
 
 
-    public static void v (String tag, String message)
+    /**
+     * Logs a message with the given level, or queues it in
+     * asynchronous mode.
+     */
+    private static void log(int level, String tag, String message)
     {
-    	if (sConnected)
-    	{
-	    	try
-	    	{
-                if (!sLogger.isRegistered(tag))
-                    register(tag);
+        if (level < sLevel)
+            return;
 
-	    		sLogger.verbose(tag, message);
-	    	}
-	    	catch (RemoteException re)
-	    	{
-	    		android.util.Log.e(TAG, "Remote Exception", re);
-	    	}
-    	}
-    	else
-    	{
-    		android.util.Log.v(tag, message);
-    	}
+        if (!sConnected)
+        {
+            android.util.Log.println(level, tag, message);
+            return;
+        }
+
+        if (!sAsync)
+        {
+            send(level, tag, message);
+            return;
+        }
+
+        Entry entry = new Entry(level, tag, message);
+        long tail;
+
+        // Claim a free slot. The slot is published by setting it,
+        // and the drain thread waits for a claimed slot to be set.
+        do
+        {
+            tail = sTail.get();
+            if (tail - sHead.get() >= RING_SIZE)
+            {
+                sDropped.incrementAndGet();
+                return;
+            }
+        }
+        while (!sTail.compareAndSet(tail, tail + 1));
+
+        sRing.set((int) (tail & RING_MASK), entry);
+
+        // The drain thread sleeps once the buffer is empty, so the
+        // call that moves the tail off an empty buffer wakes it
+        if (tail == sHead.get())
+        {
+            Thread drainThread = sDrainThread;
+            if (drainThread != null)
+                LockSupport.unpark(drainThread);
+        }
     }
 
 
-    public static void w (String tag, String message)
+    /**
+     * Sends the queued messages. Only the drain thread, or the caller
+     * of setAsync(false), reads the ring buffer.
+     *
+     * @return                  false if a claimed slot was not
+     *                          written yet
+     */
+    private static synchronized boolean drain()
     {
-    	if (sConnected)
-    	{
-	    	try
-	    	{
-                if (!sLogger.isRegistered(tag))
+        long head = sHead.get();
+        long tail = sTail.get();
+        int index;
+        Entry entry;
+
+        while (head < tail)
+        {
+            index = (int) (head & RING_MASK);
+            entry = sRing.get(index);
+
+            // Claimed but not yet written; picked up in the next round
+            if (entry == null)
+                return false;
+
+            sRing.set(index, null);
+            head++;
+            sHead.set(head);
+
+            send(entry.level, entry.tag, entry.message);
+        }
+
+        long dropped = sDropped.getAndSet(0);
+        if (dropped > 0)
+            send(WARN, TAG, "Dropped " + dropped + " log messages.");
+
+        return true;
+    }
+
+
+    /**
+     * Sends one message to SystemLog, or to the Android log when
+     * SystemLog is not connected.
+     */
+    private static void send(int level, String tag, String message)
+    {
+        ISystemLog logger = sLogger;
+
+        if (!sConnected || (logger == null))
+        {
+            android.util.Log.println(level, tag, message);
+            return;
+        }
+
+        try
+        {
+            // A tag that could not be registered is not retried until
+            // SystemLog reconnects
+            if (!sRegistered.containsKey(tag))
+            {
+                if (logger.isRegistered(tag))
+                    sRegistered.put(tag, Boolean.TRUE);
+                else
                     register(tag);
+            }
 
-	    		sLogger.warning(tag, message);
-	    	}
-	    	catch (RemoteException re)
-	    	{
-	    		android.util.Log.e(TAG, "Remote Exception", re);
-	    	}
-    	}
-    	else
-    	{
-    		android.util.Log.w(tag, message);
-    	}
+            switch (level)
+            {
+                case VERBOSE:
+                    logger.verbose(tag, message);
+                    break;
+                case DEBUG:
+                    logger.debug(tag, message);
+                    break;
+                case INFO:
+                    logger.info(tag, message);
+                    break;
+                case WARN:
+                    logger.warning(tag, message);
+                    break;
+                default:
+                    logger.error(tag, message);
+                    break;
+            }
+        }
+        catch (RemoteException re)
+        {
+            android.util.Log.e(TAG, "Remote Exception", re);
+        }
     }
 
 
@@ -74,7 +74,13 @@ import edu.ucla.cens.systemsens.util.SystemSensWakeLock;
 import edu.ucla.cens.systemsens.util.Uploader;
 import edu.ucla.cens.systemsens.util.Status;
 import edu.ucla.cens.systemsens.util.PowerModel;
+import edu.ucla.cens.systemsens.util.WorkloadSolver;
 import edu.ucla.cens.systemsens.util.CircularQueue;
+import edu.ucla.cens.systemsens.util.RetentionPolicy;
+import edu.ucla.cens.systemsens.util.SensorPipeline;
+import edu.ucla.cens.systemsens.util.SensorScheduler;
+import edu.ucla.cens.systemsens.util.PolledSensor;
+import edu.ucla.cens.systemsens.util.DeltaFilter;
 
 
 
@@ -105,6 +111,14 @@ public class SystemSens extends Service
     /** If set network location will be logged */
     public static final boolean NET_LOC = false;
 
+    /** Flag to gzip compress upload request bodies. The server
+      * must accept Content-Encoding: gzip before this is enabled. */
+    public static final boolean GZIP_UPLOAD = false;
+
+    /** Limits on the records kept while waiting for an upload */
+    private static final long MAX_DB_SIZE = 32 * 1024 * 1024;
+    private static final long MAX_DB_AGE = 30 * 24 * 60 * 60 * 1000L;
+
 
 
     /** Types of messages used by this service */
@@ -142,6 +156,19 @@ public class SystemSens extends Service
     public static final String APPRESOURCE_TYPE = "appresource";
     public static final String RECENTAPPS_TYPE = "recentapps";
 
+    /** Record types in the order they are evicted when the database
+      * is full. High volume types go first. */
+    private static final String[] EVICTION_ORDER = new String[] {
+        APPRESOURCE_TYPE, NETLOG_TYPE, NETIFLOG_TYPE, RECENTAPPS_TYPE,
+        ACTIVITYLOG_TYPE, SERVICELOG_TYPE, MEMINFO_TYPE, NETDEV_TYPE,
+        WIFISCAN_TYPE, MEMSTAT_TYPE, CPUSTAT_TYPE, SENSORSTAT_TYPE, 
+        USAGESTAT_TYPE};
+
+    /** Snapshot record types that are stored as deltas. NetLogger
+      * reports only the UIDs whose traffic changed on its own. */
+    private static final String[] DELTA_TYPES = new String[] {
+        MEMINFO_TYPE, NETDEV_TYPE, RECENTAPPS_TYPE};
+
 
     /** String names of JSON data keys */
     public static final String BATTERY_LEVEL = "level";
@@ -166,9 +193,21 @@ public class SystemSens extends Service
     
     /** Default values for timers in seconds */
     private static final long DEFAULT_POLLING_INTERVAL = 2 * ONE_MINUTE;
+    private static final long CPU_POLLING_INTERVAL = 30 * ONE_SECOND;
+
+    /** Time between two full records of the delta filtered types */
+    private static final long KEYFRAME_INTERVAL = 60 * ONE_MINUTE;
     private static final long DEFAULT_WIFISCAN_INTERVAL = 2 * ONE_MINUTE;
    
     
+    /** Time the stages of a poll may take */
+    private static final long CLIENT_STAGE_TIMEOUT = 10 * ONE_SECOND;
+    private static final long SENSOR_STAGE_TIMEOUT = 5 * ONE_SECOND;
+
+    /** Delay before the due sensors are tried again when the
+     * previous poll is still running */
+    private static final long POLL_RETRY_DELAY = 10 * ONE_SECOND;
+
     private static final int MIN_LOC_TIME = 10 * ONE_MINUTE;
     private static final int MIN_LOC_DIST = 0;
 
@@ -211,11 +250,18 @@ public class SystemSens extends Service
 
     private PowerModel mPowerModel;
 
+    /** Splits the battery budget among the clients under the
+     * workload policy */
+    private WorkloadSolver mSolver = new WorkloadSolver();
+
 
     /** Database adaptor object */
     private SystemSensDbAdaptor mDbAdaptor;
     private PowerDbAdaptor  mPowerDB;
 
+    /** Stores only the changed part of snapshot records */
+    private DeltaFilter mDeltaFilter;
+
     /** Holds the IMEI of the device */
     public static String IMEI;
 
@@ -248,6 +294,18 @@ public class SystemSens extends Service
     
     /** NetLogger object */
     private NetLogger mNetLogger;
+
+    /** Runs the polling sensors off the main thread */
+    private SensorPipeline mPipeline;
+
+    /** Decides which sensors are read at each wakeup */
+    private SensorScheduler mScheduler;
+
+    /** Alarm that wakes the phone for the next poll */
+    private PendingIntent mPollAlarm;
+
+    /** Repeating alarm that restarts the polls if an alarm is lost */
+    private PendingIntent mWatchdogAlarm;
     
     /** Receiver objects */
     private PhoneStateReceiver mStateListener;
@@ -297,10 +355,14 @@ public class SystemSens extends Service
                 if (action.equals(POLLSENSORS_ACTION))
                 {
                     pollingSensors();
-
+                    return;
                 }
         }
 
+        // Each poll sets the alarm of the next one, so any other
+        // start sets it again in case it was lost
+        schedulePoll();
+
     }
 
 
@@ -316,6 +378,7 @@ public class SystemSens extends Service
 
 
         Log.setAppName(TAG);
+        Log.setAsync(true);
 
         bindService(new Intent(ISystemLog.class.getName()),
                 Log.SystemLogConnection, Context.BIND_AUTO_CREATE);
@@ -361,9 +424,14 @@ public class SystemSens extends Service
         mIsUploading = false;
 
         mDbAdaptor = new SystemSensDbAdaptor(this);
+        mDbAdaptor.setRetentionPolicy(new RetentionPolicy(MAX_DB_SIZE,
+                    MAX_DB_AGE, EVICTION_ORDER));
+        mDeltaFilter = new DeltaFilter(mDbAdaptor, KEYFRAME_INTERVAL,
+                DELTA_TYPES);
         mPowerDB = new PowerDbAdaptor(this);
 
-        mUploader = new Uploader(mDbAdaptor);
+        mUploader = new Uploader(mDbAdaptor, Uploader.CUSTOM_URL,
+                GZIP_UPLOAD);
         //mDumper = new Dumper(mDbAdaptor, this);
 
         mPowerModel = new PowerModel();
@@ -385,10 +453,14 @@ public class SystemSens extends Service
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO )
         {
-            mEventLogger = new EventLogger();
+            mEventLogger = new EventLogger(this);
             mNetLogger = new NetLogger(this);
         }
 
+        mScheduler = new SensorScheduler(createPolledSensors(),
+                SystemClock.elapsedRealtime());
+        mPipeline = new SensorPipeline(mScheduler.size());
+
 
         if (ADDL_SENSORS)
         {
@@ -471,15 +543,19 @@ public class SystemSens extends Service
 
         Intent alarmIntent = new Intent(SystemSens.this, 
                 SystemSensAlarmReceiver.class);
-        PendingIntent sender = PendingIntent.getBroadcast(
+        mPollAlarm = PendingIntent.getBroadcast(
                 SystemSens.this, 0, alarmIntent, 0);
-        long firstTime = SystemClock.elapsedRealtime() +
-            POLLING_INTERVAL;
+        mWatchdogAlarm = PendingIntent.getBroadcast(
+                SystemSens.this, 1, alarmIntent, 0);
+
+        schedulePoll();
 
         AlarmManager am = (AlarmManager) getSystemService(
                     ALARM_SERVICE);
-        am.setRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                firstTime, POLLING_INTERVAL, sender);
+        am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() 
+                + AlarmManager.INTERVAL_FIFTEEN_MINUTES,
+                AlarmManager.INTERVAL_FIFTEEN_MINUTES, mWatchdogAlarm);
 
 
         mPM = (PowerManager) getSystemService(Context.POWER_SERVICE);
@@ -554,10 +630,13 @@ public class SystemSens extends Service
         // Stop further WiFi scanning
         //stopWifiScan();
 
-        // Close the database adaptor
-        /* Obsolete. DB is not kept open continously
-        mDbAdaptor.close();
-        */
+        // Stop polling, write pending records and close the 
+        // database adaptor
+        mPipeline.shutdown();
+        mDbAdaptor.shutdown();
+
+        if (mNetLogger != null)
+            mNetLogger.release();
 
         mNM.cancel(NOTIFICATION_ID);
 
@@ -1635,6 +1714,12 @@ public class SystemSens extends Service
 
 
 
+    /**
+     * Starts a poll of the sensors that are due. The sensors are read
+     * by the collector threads of the pipeline and the CPU wake lock
+     * is released once the records of the poll are handed to the
+     * database writer.
+     */
     private void pollingSensors()
     {
 
@@ -1646,6 +1731,184 @@ public class SystemSens extends Service
         if (mIsPlugged && (!mIsUploading))
             upload();
 
+        long now = SystemClock.elapsedRealtime();
+        List<PolledSensor> due = mScheduler.dueSensors(now);
+
+        if (due.isEmpty())
+        {
+            schedulePoll();
+
+            // A running poll still needs the wake lock and releases
+            // it when it is done
+            if (!mPipeline.isBusy())
+                SystemSensWakeLock.releaseCpuLock();
+            return;
+        }
+
+        // If the previous poll is still running it keeps the wake
+        // lock and releases it when it is done. The sensors stay due
+        // and are tried again at the next wakeup.
+        boolean started = mPipeline.poll(mScheduler.getStages(due), 
+                new Runnable()
+        {
+            public void run()
+            {
+                mDbAdaptor.flushDb();
+
+                // Release the wakelock
+                SystemSensWakeLock.releaseCpuLock();
+            }
+        });
+
+        if (started)
+            mScheduler.advance(due, now);
+
+        schedulePoll();
+    }
+
+
+    /**
+     * Sets the alarm for the earliest due sensor. 
+     * Each wakeup sets the next one, so only one alarm is pending at
+     * a time; the watchdog alarm restarts the chain if it breaks.
+     * Sensors that are still due because the pipeline was busy are
+     * tried again after POLL_RETRY_DELAY.
+     */
+    private void schedulePoll()
+    {
+        long next = Math.max(mScheduler.getNextWakeup(),
+                SystemClock.elapsedRealtime() + POLL_RETRY_DELAY);
+
+        AlarmManager am = (AlarmManager) getSystemService(
+                    ALARM_SERVICE);
+        am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, next, mPollAlarm);
+    }
+
+
+    /**
+     * Creates the polled sensors. Each sensor has its own period and
+     * cost. A sensor that needs another one to run first declares
+     * it as its dependency.
+     *
+     * @return              list of sensors
+     */
+    private List<PolledSensor> createPolledSensors()
+    {
+        List<PolledSensor> sensors = new ArrayList<PolledSensor>();
+
+        // Client work queues assume one sample per POLLING_INTERVAL
+        sensors.add(new PolledSensor("clients", POLLING_INTERVAL,
+                    PolledSensor.COST_MEDIUM, CLIENT_STAGE_TIMEOUT)
+        {
+            public void run()
+            {
+                pollClients();
+            }
+        });
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO )
+        {
+            sensors.add(new PolledSensor("netlog", POLLING_INTERVAL,
+                        PolledSensor.COST_HIGH, SENSOR_STAGE_TIMEOUT)
+            {
+                public void run()
+                {
+                    // Get network information 
+                    mDbAdaptor.createEntry( mNetLogger.getAppNetUsage(), 
+                            NETLOG_TYPE);
+
+                    mDbAdaptor.createEntry(  mNetLogger.getIfNetUsage(), 
+                            NETIFLOG_TYPE);
+                }
+            });
+
+            sensors.add(new PolledSensor("eventlog", POLLING_INTERVAL,
+                        PolledSensor.COST_MEDIUM, SENSOR_STAGE_TIMEOUT)
+            {
+                public void run()
+                {
+                    // Get send and receive information 
+                    mEventLogger.update();
+
+                    // Each kind of events is stored with its own type
+                    for (String kind : mEventLogger.getKinds())
+                        if (mEventLogger.hasEvents(kind))
+                            mDbAdaptor.createEntry( 
+                                    mEventLogger.getEvents(kind), kind);
+                }
+            });
+        }
+
+        // Get /proc information
+        sensors.add(new PolledSensor("netdev", POLLING_INTERVAL,
+                    PolledSensor.COST_LOW, SENSOR_STAGE_TIMEOUT)
+        {
+            public void run()
+            {
+                mDeltaFilter.createEntry( mProc.getNetDev(), 
+                        NETDEV_TYPE);
+            }
+        });
+
+        sensors.add(new PolledSensor("meminfo", POLLING_INTERVAL,
+                    PolledSensor.COST_LOW, SENSOR_STAGE_TIMEOUT)
+        {
+            public void run()
+            {
+                mDeltaFilter.createEntry( mProc.getMemInfo(),
+                        MEMINFO_TYPE);
+            }
+        });
+
+        PolledSensor cpu = new PolledSensor("cpu", CPU_POLLING_INTERVAL,
+                PolledSensor.COST_LOW, SENSOR_STAGE_TIMEOUT)
+        {
+            public void run()
+            {
+                mDbAdaptor.createEntry( mProc.getCpuLoad(),
+                        CPUSTAT_TYPE);
+            }
+        };
+        sensors.add(cpu);
+
+        // Must run after Proc.getCpuLoad()
+        sensors.add(new PolledSensor("appresource", POLLING_INTERVAL,
+                    PolledSensor.COST_HIGH, SENSOR_STAGE_TIMEOUT, cpu)
+        {
+            public void run()
+            {
+                mDbAdaptor.createEntry( mActivityLogger.getMemCpu(), 
+                        APPRESOURCE_TYPE);
+            }
+        });
+
+        sensors.add(new PolledSensor("recentapps", POLLING_INTERVAL,
+                    PolledSensor.COST_MEDIUM, SENSOR_STAGE_TIMEOUT)
+        {
+            public void run()
+            {
+                mDeltaFilter.createEntry( 
+                        mActivityLogger.getRecentTasks(), 
+                        RECENTAPPS_TYPE);
+            }
+
+            // Recent tasks only change while the phone is in use
+            public boolean isEnabled()
+            {
+                return mPM.isScreenOn();
+            }
+        });
+
+        return sensors;
+    }
+
+
+    /**
+     * Reads the work done by the adaptive clients and sets their
+     * next work limits.
+     */
+    private void pollClients()
+    {
         // Getting info from clients
         List workList;
         JSONObject clientInfo;
@@ -1660,6 +1923,16 @@ public class SystemSens extends Service
         boolean bootStrap = true;
         double newRate;
 
+        // Under the workload policy the limits of all the clients are
+        // solved together after every client has reported its work
+        boolean workload = mPolicy.equals(PowerModel.WORKLOAD_POLICY);
+        double minutes = (double) POLLING_INTERVAL / ONE_MINUTE;
+        IAdaptiveApplication[] workloadApps = 
+            new IAdaptiveApplication[clientCount];
+        String[] workloadNames = new String[clientCount];
+        int[] firstUnit = new int[clientCount + 1];
+        mSolver.reset();
+
         for (int i = 0; i < clientCount; i++)
         {
             try
@@ -1676,6 +1949,7 @@ public class SystemSens extends Service
 
 
                 CircularQueue queue;
+                boolean complete = true;
 
                 try
                 {
@@ -1685,6 +1959,8 @@ public class SystemSens extends Service
                                 workList.get(j));
                         queue = (CircularQueue)(pastWork.get(j));
                         queue.add((Double)workList.get(j));
+                        mPowerModel.addUsage(unitNames.get(j),
+                                queue.getLast());
 
                         if (mPolicy.equals(mPowerModel.RATE_POLICY))
                         {
@@ -1701,11 +1977,17 @@ public class SystemSens extends Service
 
                             nextWorkLimit.add(curWorkSum * newRate);
                         }
-                        else if (mPolicy.equals(
-                                    mPowerModel.WORKLOAD_POLICY)) 
+                        else if (workload) 
                         {
                             /* Workload based policy */
-
+                            mSolver.add(
+                                    mPowerModel.getCoefficient(
+                                        unitNames.get(j)),
+                                    (queue.getCount() > 0) 
+                                    ? queue.getSum() 
+                                    / (queue.getCount() * minutes) 
+                                    : 0.0,
+                                    queue.getSize() * minutes);
                         }
 
                     }
@@ -1717,10 +1999,20 @@ public class SystemSens extends Service
                 catch (JSONException je)
                 {
                     Log.e(TAG, "Could not handle JSON object", je);
+
+                    // Only part of the units were read, so the client
+                    // gets no limits this time
+                    mSolver.truncate(firstUnit[i]);
+                    complete = false;
                 }
 
 
-                if (!bootStrap)
+                if (complete && workload)
+                {
+                    workloadApps[i] = app;
+                    workloadNames[i] = clientName;
+                }
+                else if (complete && !bootStrap)
                 {
                     app.setWorkLimit(nextWorkLimit);
                     Log.i(TAG, "Budget for " + clientName + ": " 
@@ -1732,74 +2024,60 @@ public class SystemSens extends Service
             catch (RemoteException re)
             {
                 Log.e(TAG, "Could not get WorkList", re);
-            }
 
+                // The units read before the failure get no limit, so
+                // they must not use up the budget of the others
+                mSolver.truncate(firstUnit[i]);
+            }
 
+            firstUnit[i + 1] = mSolver.size();
         }
 
-        mClients.finishBroadcast();
-
+        if (workload)
+            setWorkloadLimits(workloadApps, workloadNames, firstUnit);
 
-
-        Log.i(TAG, "Logging sensors");
-        
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO )
-        {
-
-            // Get network information 
-            mDbAdaptor.createEntry( mNetLogger.getAppNetUsage(), 
-                        NETLOG_TYPE);
-            
-            mDbAdaptor.createEntry(  mNetLogger.getIfNetUsage(), 
-                    NETIFLOG_TYPE);
+        mClients.finishBroadcast();
+    }
 
 
+    /**
+     * Solves the work limits of all the clients under the workload
+     * policy and sends them to the clients.
+     *
+     * @param   apps        clients that reported their work, null for
+     *                      the ones that failed
+     * @param   names       names of the clients
+     * @param   firstUnit   index of the first unit of each client in
+     *                      the solver, followed by the total count
+     */
+    private void setWorkloadLimits(IAdaptiveApplication[] apps,
+            String[] names, int[] firstUnit)
+    {
+        mSolver.solve(mPowerModel.getAvailableRate(
+                    mSolver.getAdaptiveRate()));
 
-            // Get send and receive information 
-            mEventLogger.update();
-            
-            mDbAdaptor.createEntry( mEventLogger.getActivityEvents(), 
-                    ACTIVITYLOG_TYPE);
+        List<Double> nextWorkLimit;
 
-            mDbAdaptor.createEntry( mEventLogger.getServiceEvents(), 
-                        SERVICELOG_TYPE);
+        for (int i = 0; i < apps.length; i++)
+        {
+            if (apps[i] == null)
+                continue;
 
-            mDbAdaptor.createEntry( mEventLogger.getCpuEvents(), 
-                        CPUSTAT_TYPE);
+            nextWorkLimit = new ArrayList<Double>();
+            for (int j = firstUnit[i]; j < firstUnit[i + 1]; j++)
+                nextWorkLimit.add(mSolver.getLimit(j));
 
-            mDbAdaptor.createEntry( mEventLogger.getMemEvents(), 
-                        MEMSTAT_TYPE);
+            try
+            {
+                apps[i].setWorkLimit(nextWorkLimit);
+                Log.i(TAG, "Budget for " + names[i] + ": " 
+                        + nextWorkLimit.toString());
+            }
+            catch (RemoteException re)
+            {
+                Log.e(TAG, "Could not set work limit", re);
+            }
         }
-
-        // Get /proc information
-        mDbAdaptor.createEntry( mProc.getNetDev(), 
-                    NETDEV_TYPE);
-       
-        mDbAdaptor.createEntry( mProc.getMemInfo(),
-                MEMINFO_TYPE);
-        
-        mDbAdaptor.createEntry( mProc.getCpuLoad(),
-                CPUSTAT_TYPE);
-
-
-        // Must be called after Proc.getCpuLoad()
-        mDbAdaptor.createEntry( mActivityLogger.getMemCpu(), 
-                APPRESOURCE_TYPE);
-
-        mDbAdaptor.createEntry( mActivityLogger.getRecentTasks(), 
-                RECENTAPPS_TYPE);
-
-
-
-        mDbAdaptor.flushDb();
-
-
-
-
-
-        // Release the wakelock
-        SystemSensWakeLock.releaseCpuLock();
-
     }
 }
 
@@ -7,13 +7,11 @@ import android.app.ActivityManager.RunningTaskInfo;
 import android.app.ActivityManager.RecentTaskInfo;
 import android.content.Context;
 import android.os.Debug.MemoryInfo;
+import android.os.SystemClock;
 import android.util.Log;
 import android.content.Intent;
 import android.content.ComponentName;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.TreeMap;
 import java.util.List;
 
 import org.json.JSONObject;
@@ -27,8 +25,39 @@ public class ActivityLogger
     private static final String TAG = "SystemSensActivityLogger";
     private static final int MAX_NUM = 100;
 
+    /** Default time budget of the memory reads of one poll */
+    private static final long DEFAULT_MEM_BUDGET = 200;
+
+    /** Initial estimate of the time to read one process */
+    private static final double INITIAL_MEM_COST = 20.0;
+
+    /** CPU usage (in percent) above which the memory of a process is
+     * read again in the same poll */
+    private static final double CPU_JUMP = 5.0;
+
+    /** Indexes of the memory values of a process */
+    private static final int TOTAL_PSS = 0;
+    private static final int PRIVATE_DIRTY = 1;
+    private static final int SHARED_DIRTY = 2;
+    private static final int MEM_TIME = 3;
+
     private long mTotalCpu;
-    private HashMap<Integer, List<Long>> mTimeMap;
+
+    /** CPU times of the processes at the last sample */
+    private final PidTable mTimeTable;
+    private int mGeneration = 0;
+    private final long[] mCpuTime = new long[2];
+    private final long[] mLastCpuTime = new long[2];
+
+    /** Memory of the processes at their last read */
+    private final PidTable mMemTable;
+    private final long[] mMem = new long[4];
+
+    /** Time budget of the memory reads of one poll */
+    private long mMemBudget = DEFAULT_MEM_BUDGET;
+
+    /** Running estimate of the time to read one process */
+    private double mMemCost = INITIAL_MEM_COST;
 
 
     public ActivityLogger(Context context)
@@ -37,7 +66,8 @@ public class ActivityLogger
             context.getSystemService(Context.ACTIVITY_SERVICE);
 
         mTotalCpu = Proc.getCpuTotalTime();
-        mTimeMap = new HashMap<Integer, List<Long>>();
+        mTimeTable = new PidTable(2);
+        mMemTable = new PidTable(4);
 
     }
 
@@ -92,100 +122,213 @@ public class ActivityLogger
     }
 
 
-    public JSONObject getMemCpu()
+    /**
+     * Sets the time that reading process memory may take in one
+     * poll.
+     *
+     * @param   budget      time budget in milliseconds
+     */
+    public synchronized void setMemoryBudget(long budget)
+    {
+        mMemBudget = budget;
+    }
+
+
+    /**
+     * Returns the memory and CPU usage of the running processes.
+     *
+     * getProcessMemoryInfo is slow, so the memory of only some of the
+     * processes is read in each poll, as many as fit in the memory
+     * budget. New processes come first, then processes whose CPU
+     * usage jumped, then the ones with the oldest values. The other
+     * processes report their last values, and MemAge gives the age
+     * of the values in milliseconds.
+     *
+     * @return              JSONObject with an entry for each process
+     */
+    public synchronized JSONObject getMemCpu()
     {
         JSONObject result = new JSONObject();
 
         List<RunningAppProcessInfo> runningApps = 
             mActivityManager.getRunningAppProcesses(); 
-        Map<Integer, String> pidMap = new TreeMap<Integer, String>(); 
-        
+        int[] pids = new int[runningApps.size()];
+        String[] names = new String[pids.length];
+
+        int index = 0;
         for (RunningAppProcessInfo appInfo : runningApps) 
         { 
-            pidMap.put(appInfo.pid, appInfo.processName); 
+            pids[index] = appInfo.pid;
+            names[index] = appInfo.processName;
+            index++;
         } 
 
-        int[] pids = new int[pidMap.size()];
-
-        int index = 0;
-        for (Integer id : pidMap.keySet())
-        {
-            pids[index++] = id;
-        }
-        MemoryInfo[] memInfo = mActivityManager.getProcessMemoryInfo(pids); 
-
         long curTotalCpuTime = Proc.getCpuTotalTime();
         long jiffies = curTotalCpuTime - mTotalCpu;
         mTotalCpu = curTotalCpuTime;
 
         int pid;
-        List<Long> cpuTime, lastCpuTime;
-        double uCpu, sCpu;
+        double[] uCpu = new double[pids.length];
+        double[] sCpu = new double[pids.length];
         
         long lastUTime, lastSTime, uTime, sTime;
 
-        MemoryInfo info;
-        JSONObject processJson;
+        // Processes written in this round survive the eviction at
+        // its end
+        int generation = mGeneration + 1;
 
         for(int i = 0; i < pids.length; i++)
         { 
             pid = pids[i];
-            info = memInfo[i];
-            processJson = new JSONObject();
 
-            cpuTime = Proc.readProcessCpuTime(pid);
-            if (cpuTime != null)
+            if (mTimeTable.get(pid, mLastCpuTime))
             {
-                uTime = cpuTime.get(0);
-                sTime = cpuTime.get(1);
+                lastUTime = mLastCpuTime[0];
+                lastSTime = mLastCpuTime[1];
             }
             else
             {
-                uTime = 0L;
-                sTime = 0L;
-            }
+                lastUTime = 0L;
+                lastSTime = 0L;
 
+            }
 
-            if (mTimeMap.containsKey(pid))
+            if (Proc.readProcessCpuTime(pid, mCpuTime))
             {
-                lastCpuTime = mTimeMap.get(pid);
-                lastUTime = lastCpuTime.get(0);
-                lastSTime = lastCpuTime.get(1);
-           }
+                uTime = mCpuTime[0];
+                sTime = mCpuTime[1];
+                mTimeTable.put(pid, mCpuTime, generation);
+            }
             else
             {
-                lastUTime = 0L;
-                lastSTime = 0L;
-
+                uTime = 0L;
+                sTime = 0L;
             }
 
-            uCpu = 100.0f * (uTime - lastUTime) / jiffies;
-            sCpu = 100.0f * (sTime - lastSTime) / jiffies;
+            uCpu[i] = 100.0f * (uTime - lastUTime) / jiffies;
+            sCpu[i] = 100.0f * (sTime - lastSTime) / jiffies;
+        }
 
-            mTimeMap.put(pid, cpuTime);
+        long now = SystemClock.elapsedRealtime();
+        sampleMemory(pids, uCpu, sCpu, now, generation);
 
+        JSONObject processJson;
 
+        for(int i = 0; i < pids.length; i++)
+        { 
+            processJson = new JSONObject();
 
             try
             {
-                processJson.put("TotalPss", info.getTotalPss());
-                processJson.put("PrivateDirty",
-                        info.getTotalPrivateDirty());
-                processJson.put("SharedDirty",
-                        info.getTotalSharedDirty());
-
-                processJson.put("UserCpu", uCpu);
-                processJson.put("SystemCpu", sCpu);
-
-                result.put(pidMap.get(pid), processJson);
+                if (mMemTable.get(pids[i], mMem))
+                {
+                    processJson.put("TotalPss", mMem[TOTAL_PSS]);
+                    processJson.put("PrivateDirty", 
+                            mMem[PRIVATE_DIRTY]);
+                    processJson.put("SharedDirty", mMem[SHARED_DIRTY]);
+                    processJson.put("MemAge", now - mMem[MEM_TIME]);
+                }
+
+                processJson.put("UserCpu", uCpu[i]);
+                processJson.put("SystemCpu", sCpu[i]);
+
+                result.put(names[i], processJson);
             } 
             catch (JSONException je)
             {
-                Log.e("TAG", "Could not insert data into JSONObject",
+                Log.e(TAG, "Could not insert data into JSONObject",
                         je);
             }
         }
 
+        // Forget the processes that are no longer running
+        mGeneration = generation;
+        mTimeTable.evictOlderThan(mGeneration);
+        mMemTable.evictOlderThan(mGeneration);
+
         return result;
     }
+
+
+    /**
+     * Reads the memory of the processes that need it most, as many
+     * as the budget allows, and stores it in the memory table.
+     */
+    private void sampleMemory(int[] pids, double[] uCpu, double[] sCpu,
+            long now, int generation)
+    {
+        int count = pids.length;
+        if (count == 0)
+            return;
+
+        // Rank 0: never read, 1: CPU jumped, 2: the rest by age
+        int[] rank = new int[count];
+        long[] age = new long[count];
+        int[] order = new int[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            order[i] = i;
+
+            if (!mMemTable.touch(pids[i], generation))
+            {
+                rank[i] = 0;
+                age[i] = Long.MAX_VALUE;
+            }
+            else
+            {
+                mMemTable.get(pids[i], mMem);
+                age[i] = now - mMem[MEM_TIME];
+                rank[i] = ((uCpu[i] + sCpu[i]) >= CPU_JUMP) ? 1 : 2;
+            }
+        }
+
+        // Insertion sort by rank, then by decreasing age
+        int cur, j;
+        for (int i = 1; i < count; i++)
+        {
+            cur = order[i];
+            j = i - 1;
+            while ((j >= 0) && ((rank[order[j]] > rank[cur]) 
+                        || ((rank[order[j]] == rank[cur]) 
+                            && (age[order[j]] < age[cur]))))
+            {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = cur;
+        }
+
+        int refresh = (int) (mMemBudget / mMemCost);
+        if (refresh < 1)
+            refresh = 1;
+        if (refresh > count)
+            refresh = count;
+
+        int[] subset = new int[refresh];
+        for (int i = 0; i < refresh; i++)
+            subset[i] = pids[order[i]];
+
+        long start = SystemClock.elapsedRealtime();
+        MemoryInfo[] memInfo = mActivityManager.getProcessMemoryInfo(
+                subset); 
+        long took = SystemClock.elapsedRealtime() - start;
+
+        mMemCost = Math.max(1.0, 
+                0.8 * mMemCost + 0.2 * ((double) took / refresh));
+
+        MemoryInfo info;
+        for (int i = 0; i < refresh; i++)
+        {
+            info = memInfo[i];
+            mMem[TOTAL_PSS] = info.getTotalPss();
+            mMem[PRIVATE_DIRTY] = info.getTotalPrivateDirty();
+            mMem[SHARED_DIRTY] = info.getTotalSharedDirty();
+            mMem[MEM_TIME] = now;
+            mMemTable.put(subset[i], mMem, generation);
+        }
+
+        Log.v(TAG, "Read memory of " + refresh + " of " + count 
+                + " processes in " + took + " ms");
+    }
 }
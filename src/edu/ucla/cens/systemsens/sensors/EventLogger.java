@@ -5,26 +5,40 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.EventLog;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.EventLog.Event;
-import android.os.Build;
+
+import edu.ucla.cens.systemsens.SystemSens;
 
 /**
  * Reads the logs for which applications have been started, restarted, 
  * resumed, or paused to get an idea for what applications have been used.
- * There should never exist an instance of this class. Its constructor
- * should be called exactly once to initialize the class. All
- * subsequent calls should be to the static functions.
+ * SystemSens keeps one instance and updates it at each poll, from a
+ * collector thread.
+ * 
+ * Only the events newer than the last update are decoded. The time
+ * of the newest event and the number of events that share it are
+ * kept in the shared preferences, so a restart of the service neither
+ * repeats nor loses events. They are written in the background where
+ * the platform allows it, so an update does not wait for the disk.
+ * The events are grouped in kinds, and each kind is returned as one
+ * compact record: a list of field names and one row of values per
+ * event. Any tag of the event log can be added to a kind with 
+ * addEvents(). The fields of a tag are located once, when it is 
+ * added, so decoding an event only copies its values.
  * 
  * Note: In order for this aspect of the system to work, you must have
  * included "android.permission.READ_LOGS".
@@ -38,90 +52,126 @@ public class EventLogger
 	
 	private static final String EVENT_LOG_TAGS_FILE = "/system/etc/event-log-tags";
 	
+	/** Shared preferences that hold the position of the reader */
+	private static final String PREFS_NAME = "EventLogger";
+	private static final String KEY_LAST_UPDATE = "last_update";
+	private static final String KEY_LAST_COUNT = "last_count";
 
-	
-	
-	private Set<String> mActivityEvents;
-	private Set<String> mCpuEvents;
-	private Set<String> mServiceEvents;
-	private Set<String> mMemoryEvents;
+	/** Positions more than this far in the future are discarded */
+	private static final long MAX_CLOCK_SKEW = 60L * 1000L * 1000L * 1000L;
+
+	/** Kinds of events that are read by default. The activity and
+	 * service kinds are stored under the record types of SystemSens. */
+	public static final String CPU_KIND = "cpu";
+	public static final String MEMORY_KIND = "memory";
+
+	/** Tag names and descriptors of the event log tags file */
+	private HashMap<String, TagEntry> mTagFile;
 
-	private HashMap<Integer, TagInfo> mTags;
+	/** Decoder of each tag that is read, by tag id */
+	private SparseArray<TagDecoder> mDecoders;
+
+	/** Kinds of events, in the order they were added */
+	private LinkedHashMap<String, EventKind> mKinds;
+
+	/** Number of events that could not be decoded */
+	private int mUnknownCount, mMalformedCount;
 	
+	/** Time of the newest event that has been read, in nanoseconds */
 	private long mLastUpdate;
+
+	/** Number of events read that have the time of mLastUpdate */
+	private int mLastCount;
+
+	private SharedPreferences mPrefs;
+
+	/** SharedPreferences.Editor.apply(), which is only available
+	 * from Gingerbread on. Null if it is missing. */
+	private static final Method sApply = findApply();
+
+	/** Reused buffer of the events read in one update */
+	private ArrayList<EventLog.Event> mEvents;
+
+	private int[] mTagsToRetrieve;
 	
-	private JSONObject mActivity, mService, mCpu, mMem;
-	
+
 	/**
 	 * Creates a new EventProcessor object. 
+	 *
+	 * @param context		context used to keep the position of the
+	 * 						reader across restarts
 	 */
-	public EventLogger()
+	public EventLogger(Context context)
 	{			
+		mTagFile = new HashMap<String, TagEntry>();
+		mDecoders = new SparseArray<TagDecoder>();
+		mKinds = new LinkedHashMap<String, EventKind>();
+		mTagsToRetrieve = new int[0];
 
-		mTags = new HashMap<Integer, TagInfo>();
-		
-		mActivityEvents = new HashSet<String>();
-		mCpuEvents = new HashSet<String>();
-		mServiceEvents = new HashSet<String>();
-		mMemoryEvents = new HashSet<String>();
-		
-
+		mPrefs = context.getSharedPreferences(PREFS_NAME, 
+				Context.MODE_PRIVATE);
+		mLastUpdate = mPrefs.getLong(KEY_LAST_UPDATE, 0L);
+		mLastCount = mPrefs.getInt(KEY_LAST_COUNT, 0);
 
-		mActivityEvents.add("am_create_activity");
-		mActivityEvents.add("am_restart_activity");
-		mActivityEvents.add("am_resume_activity");
-		mActivityEvents.add("am_pause_activity");
-		mActivityEvents.add("am_destroy_activity");
-		mActivityEvents.add("am_relaunch_activity");
-		mActivityEvents.add("am_finish_activity");
+		// The clock was set back since the position was saved
+		if (mLastUpdate > System.currentTimeMillis() * 1000000L 
+				+ MAX_CLOCK_SKEW)
+		{
+			Log.w(TAG, "Discarding event log position in the future.");
+			mLastUpdate = 0L;
+			mLastCount = 0;
+		}
 
+		mEvents = new ArrayList<EventLog.Event>();
 		
+		getTags();
 
-		mServiceEvents.add("am_create_service");
-		mServiceEvents.add("am_destroy_service");
+		addEvents(SystemSens.ACTIVITYLOG_TYPE, 
+				new String[] {"Activity", "Action", "Task"},
+				new String[] {"Component Name", "Action", "Task ID"},
+				new String[] {"am_create_activity", "am_restart_activity",
+					"am_resume_activity", "am_pause_activity",
+					"am_destroy_activity", "am_relaunch_activity",
+					"am_finish_activity"});
 
-		
-		mCpuEvents.add("cpu");
-		
-		mMemoryEvents.add("watchdog_meminfo");
-		
-		
-		mLastUpdate = 0L;
-		
-		getTags();
+		addEvents(SystemSens.SERVICELOG_TYPE, 
+				new String[] {"Name", "Intent", "PID"},
+				new String[] {"Name", "Intent", "PID"},
+				new String[] {"am_create_service", "am_destroy_service"});
+
+		String[] cpuFields = {"total", "user", "system", "iowait", "irq",
+			"softirq"};
+		addEvents(CPU_KIND, cpuFields, cpuFields, new String[] {"cpu"});
 
+		addEvents(MEMORY_KIND,
+				new String[] {"free", "buffers", "cached", "active", 
+					"inactive", "anonpages", "mapped", "slab", 
+					"sreclaimable", "sunreclaimable"},
+				new String[] {"MemFree", "Buffers", "Cached", "Active", 
+					"Inactive", "AnonPages", "Mapped", "Slab", 
+					"SReclaimable", "SUnreclaim"},
+				new String[] {"watchdog_meminfo"});
 	}
 	
 	/**
-	 * Reads the event log tags file to populate the internal information
-	 * about the structure of the logs. This information is then used later
-	 * when retrieving logging information.
+	 * Reads the event log tags file to learn the ids and descriptors 
+	 * of the tags.
 	 * 
 	 * This file follows the following format:
 	 * 		<tag_id> <tag_name> <tag_descriptor>
 	 * 
-	 * We parse this file based on the 'tag_name's we want to get the
-     * 'tag_id' and 'tag_descriptor'. We then further parse the
-     * 'tag_descriptor' to get the specific descriptor we want. Android
-     * provides a similar function that parses this file, based on a
-     * 'tag_name', for the 'tag_id', but it is very slow; therefore, we
-     * do it once and remember it to speed things up. For more
-     * information see 'readAndParseFile()' and 'getComponentIndex()'.
+	 * Android provides a similar function that parses this file, based
+	 * on a 'tag_name', for the 'tag_id', but it is very slow; therefore,
+	 * we do it once and remember it to speed things up. 
 	 * 
 	 * @see readAndParseFile
-	 * @see getComponentIndex
 	 */
 	private void getTags()
 	{
 
 		File tagsFile = new File(EVENT_LOG_TAGS_FILE);
 		
-		if(tagsFile == null)
-		{
-			Log.e(TAG, "Failed to connect to event logs tags file.");
-			return;
-		}
-		else if(!tagsFile.exists())
+		if(!tagsFile.exists())
 		{
 			Log.e(TAG, "There is no event logs in tags file.");
 			return;
@@ -141,89 +191,46 @@ public class EventLogger
 	}
 	
 	/**
-	 * Parses the event log tags file by finding the relevant tags and
-	 * populating the local information with the structure of these logs.
+	 * Parses the event log tags file and remembers the id and the
+	 * field names of each tag.
 	 * 
 	 * @param theFile A File object that should already be attached to the
 	 * 				  event log tags file.
 	 */
 	private void readAndParseFile(File theFile)
 	{
+		BufferedReader reader = null;
+
 		try
 		{
-			BufferedReader reader = new BufferedReader(new FileReader(theFile));
+			reader = new BufferedReader(new FileReader(theFile));
 			String currLine;
-			ActivityTagInfo appTagInfo;
-			CpuTagInfo cpuTagInfo;
-			ServiceTagInfo serviceTagInfo;
-			MemTagInfo memTagInfo;
+			String[] lineInfo;
+			TagEntry entry;
 			
 			while ((currLine = reader.readLine()) != null)
 			{
-				
-				String[] lineInfo = currLine.split(" ", 3);
-				String currType = lineInfo[1];
-				
-				
-				if (mActivityEvents.contains(currType))
-				{
-					appTagInfo = new ActivityTagInfo(currType);
-					
-					appTagInfo.id = Integer.parseInt(lineInfo[0]);
-					appTagInfo.componentNameIndex = getIndex(lineInfo[2], "Component Name");
-					appTagInfo.actionIndex = getIndex(lineInfo[2], "Action");
-					appTagInfo.taskIndex = getIndex(lineInfo[2], "Task ID");
-					
-					mTags.put(appTagInfo.id, appTagInfo);
-					
-				}
-				else if (mServiceEvents.contains(currType))
-				{
-					serviceTagInfo = new ServiceTagInfo(currType);
-					
-					serviceTagInfo.id = Integer.parseInt(lineInfo[0]);
-					
-					serviceTagInfo.recordIndex = getIndex(lineInfo[2], "Service Record");
-					serviceTagInfo.nameIndex = getIndex(lineInfo[2], "Name");
-					serviceTagInfo.pidIndex = getIndex(lineInfo[2], "PID");
-					serviceTagInfo.intentIndex = getIndex(lineInfo[2], "Intent");
-					
-					mTags.put(serviceTagInfo.id, serviceTagInfo);
-				}
-				else if (mCpuEvents.contains(currType))
+				currLine = currLine.trim();
+				if ((currLine.length() == 0) || currLine.startsWith("#"))
+					continue;
+
+				lineInfo = currLine.split("\\s+", 3);
+				if (lineInfo.length < 2)
+					continue;
+
+				entry = new TagEntry();
+				try
 				{
-					cpuTagInfo = new CpuTagInfo(currType);
-					
-					cpuTagInfo.id = Integer.parseInt(lineInfo[0]);
-					cpuTagInfo.totalIndex = getIndex(lineInfo[2], "total");
-					cpuTagInfo.userIndex = getIndex(lineInfo[2], "user");
-					cpuTagInfo.iowaitIndex = getIndex(lineInfo[2], "iowait");
-					cpuTagInfo.irqIndex = getIndex(lineInfo[2], "irq");
-					cpuTagInfo.softirqIndex = getIndex(lineInfo[2], "softirq");
-					
-					mTags.put(cpuTagInfo.id, cpuTagInfo);
-					
+					entry.id = Integer.parseInt(lineInfo[0]);
 				}
-				else if (mMemoryEvents.contains(currType))
+				catch (NumberFormatException nfe)
 				{
-					memTagInfo = new MemTagInfo(currType);
-					
-					memTagInfo.id = Integer.parseInt(lineInfo[0]);
-					memTagInfo.memFreeIndex = getIndex(lineInfo[2], "MemFree");
-					memTagInfo.buffersIndex = getIndex(lineInfo[2], "Buffers");
-					memTagInfo.cachedIndex = getIndex(lineInfo[2], "Cached");
-					memTagInfo.activeIndex = getIndex(lineInfo[2], "Active");
-					memTagInfo.inactiveIndex = getIndex(lineInfo[2], "Inactive");
-					memTagInfo.anonPagesIndex = getIndex(lineInfo[2], "NaonPages");
-					memTagInfo.mappedIndex = getIndex(lineInfo[2], "Mapped");
-					memTagInfo.slabIndex = getIndex(lineInfo[2], "Slab");
-					memTagInfo.sReclaimableIndex = getIndex(lineInfo[2], "SReclaimable");
-					memTagInfo.sUnreclaimableIndex = getIndex(lineInfo[2], "SUnreclaimable");
-					
-					
+					continue;
 				}
-					
-				
+
+				entry.fields = (lineInfo.length == 3) 
+					? parseDescriptor(lineInfo[2]) : new String[0];
+				mTagFile.put(lineInfo[1], entry);
 			}
 		}
 		catch(FileNotFoundException e)
@@ -234,72 +241,137 @@ public class EventLogger
 		{
 			Log.e(TAG, "Couldn't read the entire event logs tags file.");
 		}
+		finally
+		{
+			if (reader != null)
+			{
+				try
+				{
+					reader.close();
+				}
+				catch (IOException e)
+				{
+					// Nothing more to read
+				}
+			}
+		}
 	}
 	
 	/**
-	 * Parses the component descriptor string to find the index among the list
-	 * of descriptions that matches "Component Name". This is the value that
-	 * is used by Android to describe the Application and Activity in that 
-	 * Application and is the value we store in the database to associate who
-	 * is calling this event.
-	 * 
-	 * @param componentDescriptor A String pulled from the event log tags file
-	 * 							  that describes all the types of information
-	 * 							  that Android records when an event takes
-	 * 							  place.
+	 * Returns the field names of a tag descriptor, which has the form
+	 * "(name|type|unit),(name|type)".
 	 * 
-	 * @return The index of the "Component Name" in the descriptor.
+	 * @param descriptor	descriptor of a tag from the event log tags 
+	 * 						file
+	 * @return				names of the fields, in order
 	 */
-	private int getIndex(String componentDescriptor, String component)
+	private static String[] parseDescriptor(String descriptor)
 	{
-		String[] params = componentDescriptor.split(",");
-		int currIndex = 0;
-		int compLen = component.length();
-		while(currIndex < params.length)
+		String[] params = descriptor.split(",");
+		String[] names = new String[params.length];
+		String param;
+		int end;
+
+		for (int i = 0; i < params.length; i++)
 		{
-			try
-			{
-				if(params[currIndex].substring(1, compLen + 1).equals(component))
-				{
-					return currIndex;
-				}
-			}
-			catch(StringIndexOutOfBoundsException e)
+			param = params[i].trim();
+			if (param.startsWith("("))
+				param = param.substring(1);
+
+			end = param.indexOf('|');
+			if (end < 0)
+				end = param.indexOf(')');
+			if (end >= 0)
+				param = param.substring(0, end);
+
+			names[i] = param.trim();
+		}
+
+		return names;
+	}
+
+	/**
+	 * Adds event log tags to a kind of events. All the tags of a kind
+	 * are decoded into the same columns: the time of the event, the 
+	 * name of its tag, and the given fields. A field that a tag does
+	 * not have is null.
+	 *
+	 * @param kind			name of the kind, also the type of its record
+	 * @param columns		names of the fields in the record
+	 * @param fields		names of the fields in the tag descriptors
+	 * @param tagNames		names of the tags
+	 * @return				number of the tags that were found
+	 */
+	public synchronized int addEvents(String kind, String[] columns, 
+			String[] fields, String[] tagNames)
+	{
+		EventKind eventKind = mKinds.get(kind);
+
+		if (eventKind == null)
+		{
+			eventKind = new EventKind(columns);
+			mKinds.put(kind, eventKind);
+		}
+		else if (eventKind.columns.length != columns.length + 2)
+		{
+			Log.e(TAG, "Kind " + kind + " has different columns.");
+			return 0;
+		}
+
+		int added = 0;
+		TagEntry entry;
+		int[] indexes;
+
+		for (String tagName : tagNames)
+		{
+			entry = mTagFile.get(tagName);
+			if (entry == null)
 			{
-				// This is expected as some descriptors aren't as long as the one we need.
+				Log.w(TAG, "Unknown event log tag: " + tagName);
+				continue;
 			}
-			currIndex++;
+
+			indexes = new int[fields.length];
+			for (int i = 0; i < fields.length; i++)
+				indexes[i] = indexOf(entry.fields, fields[i]);
+
+			mDecoders.put(entry.id, new TagDecoder(tagName, indexes,
+						eventKind));
+			added++;
 		}
-		
+
+		mTagsToRetrieve = new int[mDecoders.size()];
+		for (int i = 0; i < mTagsToRetrieve.length; i++)
+			mTagsToRetrieve[i] = mDecoders.keyAt(i);
+
+		return added;
+	}
+
+	private static int indexOf(String[] names, String name)
+	{
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equals(name))
+				return i;
+
 		return -1;
 	}
 		
 	/**
-	 * Updates the database with the events that have taken place since the
-	 * last call to this function. 
+	 * Reads the events that have taken place since the last call to
+	 * this function. 
 	 */
-	public void update()
+	public synchronized void update()
 	{
+		for (EventKind eventKind : mKinds.values())
+			eventKind.rows = new JSONArray();
 
-		
-		mActivity = new JSONObject();
-		mService = new JSONObject();
-		mMem = new JSONObject();
-		mCpu = new JSONObject();
-		
-		int[] tagsToRetrieve = new int[mTags.size()];
-		
-		int index = 0;
-		for (TagInfo curTag : mTags.values())
-			tagsToRetrieve[index++] = curTag.id;
-		
-		//Log.i(TAG, "Tags to retrive: " + tagsToRetrieve.length);
-		
-		Collection<EventLog.Event> log = new LinkedList<EventLog.Event>();
+		mEvents.clear();
+		mUnknownCount = 0;
+		mMalformedCount = 0;
 		
 		try
 		{
-			EventLog.readEvents(tagsToRetrieve, log);
+			EventLog.readEvents(mTagsToRetrieve, mEvents);
 		}
 		catch(IOException e)
 		{
@@ -307,325 +379,220 @@ public class EventLogger
 			return;
 		}
 		
-		long greatestEventTime = 0L;
+		// The buffer is in time order, so the new events are at its end
+		int start = mEvents.size();
+		while ((start > 0) 
+				&& (mEvents.get(start - 1).getTimeNanos() >= mLastUpdate))
+			start--;
+
+		long newestTime = mLastUpdate;
+		int newestCount = 0;
+		int seenAtLast = 0;
 		long eventTime;
-		int eventID;
-		
-		TagInfo refTag;
-		ActivityTagInfo appTag;
-		ServiceTagInfo serviceTag;
-		CpuTagInfo cpuTag;
-		MemTagInfo memTag;
-		
-		Object[] data;
-		
-		String componentNameStr;
-		String actionStr;
-		Integer taskID;
-		
-		String serviceName = "";
-		String serviceIntent = "";
-		int servicePid;
+		Event currEvent;
+		TagDecoder decoder;
 		
-		JSONObject eventObject;
-		
-		//Log.i(TAG, "Got " + log.size() + " events");
-		
-		for (Event currEvent : log)
+		for (int i = start; i < mEvents.size(); i++)
 		{
+			currEvent = mEvents.get(i);
 			eventTime = currEvent.getTimeNanos();
-			eventID = currEvent.getTag();
-			
-			if (eventTime > mLastUpdate)
-			{
-				refTag = mTags.get(eventID);
-				data = (Object[]) currEvent.getData();
-				
-				if(eventTime > greatestEventTime)
-					greatestEventTime = eventTime;	
-				
-				if (refTag.type == TagInfo.ACTIVITY)
-				{
-					appTag = (ActivityTagInfo)refTag;
-					
-					componentNameStr = "";
-					actionStr = "";
-					taskID = 0;
-					
-		
-					
-					if (appTag.componentNameIndex != -1)
-						componentNameStr = (String) ((Object[]) data)[appTag.componentNameIndex];
-					
-					if (appTag.actionIndex != -1)
-						actionStr = (String) ((Object[]) data)[appTag.actionIndex];
-					
-					if (appTag.taskIndex != -1)
-						taskID = (Integer) ((Object[]) data)[appTag.taskIndex];
-
-					eventObject = new JSONObject();
-					
-					try
-					{
-						eventObject.put("Event", appTag.tagName);
-						eventObject.put("Activity", componentNameStr);
-						eventObject.put("Action", actionStr);
-						eventObject.put("Task", taskID);
-						
-						mActivity.put(String.valueOf(eventTime), eventObject);
-					}
-					catch (JSONException je)
-					{
-						Log.e(TAG, "JSON Exception", je);
-					}
-
-					/*
-					Log.i(TAG, refTag.tagName + " " + eventTime  + " "
-							+ componentNameStr + " "
-							+ actionStr + " "
-							+ taskID);
-					*/
-				} 
-				else if (refTag.type == TagInfo.SERVICE)
-				{
-					
-					serviceTag = (ServiceTagInfo) refTag;
-					
-					serviceName = (String) ((Object[]) data)[serviceTag.nameIndex];
-					if (serviceTag.intentIndex != -1 )
-						serviceIntent = (String) ((Object[]) data)[serviceTag.intentIndex];
-					
-					servicePid = (Integer) ((Object[]) data)[serviceTag.pidIndex];
-					
-					eventObject = new JSONObject();
-					try
-					{
-						eventObject.put("Event", serviceTag.tagName);
-						eventObject.put("Name", serviceName);
-						eventObject.put("Intent", serviceIntent);
-						eventObject.put("PID", servicePid);
-						
-						mService.put(String.valueOf(eventTime), eventObject);
-					}
-					catch (JSONException je)
-					{
-						Log.e(TAG, "JSON Exception", je);
-					}
-
-					/*
-					Log.i(TAG, refTag.tagName + " " + eventTime + " "
-							+ "Service name: " + serviceName + ","
-							+ "Intent: " +  serviceIntent + ", "
-							+ "PID: " + servicePid );
-					*/
-					
-				}
-				else if (refTag.type == TagInfo.CPU)
-				{
-					cpuTag = (CpuTagInfo)refTag;
-					
-					long total, user, system, iowait, irq, softirq;
-					
-					total = (Integer) ((Object[]) data)[cpuTag.totalIndex];
-					user = (Integer) ((Object[]) data)[cpuTag.userIndex];
-					system = (Integer) ((Object[]) data)[cpuTag.systemIndex];
-					iowait = (Integer) ((Object[]) data)[cpuTag.iowaitIndex];
-					irq = (Integer) ((Object[]) data)[cpuTag.irqIndex];
-					softirq = (Integer) ((Object[]) data)[cpuTag.softirqIndex];
-					
-					eventObject = new JSONObject();
-					try
-					{
-						eventObject.put("total", total);
-						eventObject.put("user", user);
-						eventObject.put("system", system);
-						eventObject.put("iowait", iowait);
-						eventObject.put("irq", irq);
-						eventObject.put("softirq", softirq);
-						
-						mService.put(String.valueOf(eventTime), eventObject);
-					}
-					catch (JSONException je)
-					{
-						Log.e(TAG, "JSON Exception", je);
-					}
-					
-					/*
-					Log.i(TAG, refTag.tagName + " " + eventTime  + " "
-							+ "Total CPU: " + total + ", "
-							+ "User CPU: " + user + ", "
-							+ "System CPU: " + system);
-					*/
-				}
-				else if (refTag.type == TagInfo.MEMORY)
-				{
-					memTag = (MemTagInfo) refTag;
-					
-					long memFree, buffers, cached, active, 
-							inactive, anonpages, mapped, 
-							slab, sreclaimable, sunreclaimable;
-					
-					memFree = (Long) ((Object[]) data)[memTag.memFreeIndex];
-					buffers = (Long) ((Object[]) data)[memTag.buffersIndex];
-					cached = (Long) ((Object[]) data)[memTag.cachedIndex];
-					active = (Long) ((Object[]) data)[memTag.activeIndex];
-					inactive  = (Long) ((Object[]) data)[memTag.inactiveIndex];
-					anonpages = (Long) ((Object[]) data)[memTag.anonPagesIndex];
-					mapped = (Long) ((Object[]) data)[memTag.mappedIndex];
-					slab = (Long) ((Object[]) data)[memTag.slabIndex];
-					sreclaimable = (Long) ((Object[]) data)[memTag.sReclaimableIndex];
-					sunreclaimable = (Long) ((Object[]) data)[memTag.sUnreclaimableIndex];
-					
-					
-					eventObject = new JSONObject();
-					try
-					{
-						eventObject.put("free", memFree);
-						eventObject.put("buffers", buffers);
-						eventObject.put("cached", cached);
-						eventObject.put("active", active);
-						eventObject.put("inactive", inactive);
-						eventObject.put("anonpages", anonpages);
-						eventObject.put("mapped", mapped);
-						eventObject.put("slab", slab);
-						eventObject.put("sreclaimable", sreclaimable);
-						eventObject.put("sunreclaimable", sunreclaimable);
-						
-						
-						mService.put(String.valueOf(eventTime), eventObject);
-					}
-					catch (JSONException je)
-					{
-						Log.e(TAG, "JSON Exception", je);
-					}
-
-					/*
-					Log.i(TAG, refTag.tagName + " " + eventTime  + " "
-							+ "Free Memory: " + memFree + ", "
-							+ "Buffers: " + buffers);
-					*/
-				}
 
+			if (eventTime > newestTime)
+			{
+				newestTime = eventTime;
+				newestCount = 0;
 			}
-			
+			if (eventTime == newestTime)
+				newestCount++;
+
+			// Events that share the time of the last one read
+			if ((eventTime == mLastUpdate) && (seenAtLast++ < mLastCount))
+				continue;
+
+			decoder = mDecoders.get(currEvent.getTag());
+			if (decoder == null)
+				mUnknownCount++;
+			else if (!decoder.decode(currEvent.getData(), eventTime))
+				mMalformedCount++;
 		}
 		
-		
-		if (greatestEventTime != 0)
+		if ((newestTime != mLastUpdate) || (newestCount != mLastCount))
 		{
-			mLastUpdate = greatestEventTime;
-			//Log.i(TAG, "Updated lastUpdate to " + greatestEventTime);
+			mLastUpdate = newestTime;
+			mLastCount = newestCount;
+
+			savePosition();
 		}
+
+		mEvents.clear();
+
+		if ((mUnknownCount > 0) || (mMalformedCount > 0))
+			Log.w(TAG, "Skipped " + mUnknownCount + " unknown and " 
+					+ mMalformedCount + " malformed events.");
 	}
-	
-	public JSONObject getActivityEvents()
+
+	/**
+	 * Saves the position of the reader. The write is left to the
+	 * background with apply() where it exists, and falls back to a
+	 * blocking commit() on older platforms.
+	 */
+	private void savePosition()
 	{
+		SharedPreferences.Editor editor = mPrefs.edit()
+			.putLong(KEY_LAST_UPDATE, mLastUpdate)
+			.putInt(KEY_LAST_COUNT, mLastCount);
 
-		return mActivity;
+		if (sApply != null)
+		{
+			try
+			{
+				sApply.invoke(editor);
+				return;
+			}
+			catch (Exception e)
+			{
+				Log.w(TAG, "Could not apply event log position", e);
+			}
+		}
+
+		editor.commit();
 	}
-	
-	public JSONObject getServiceEvents()
-	{
 
+	private static Method findApply()
+	{
+		try
+		{
+			return SharedPreferences.Editor.class.getMethod("apply");
+		}
+		catch (NoSuchMethodException nsme)
+		{
+			return null;
+		}
+	}
 
-		return mService;
+	/**
+	 * Returns the names of the kinds of events.
+	 */
+	public synchronized String[] getKinds()
+	{
+		return mKinds.keySet().toArray(new String[mKinds.size()]);
 	}
-	
-	public JSONObject getCpuEvents()
+
+	/**
+	 * Returns true if the last update read events of the given kind.
+	 */
+	public synchronized boolean hasEvents(String kind)
 	{
+		EventKind eventKind = mKinds.get(kind);
 
-		return mCpu;
+		return (eventKind != null) && (eventKind.rows.length() > 0);
 	}
-	
-	public JSONObject getMemEvents()
+
+	/**
+	 * Returns the compact record of the events of a kind that the last
+	 * update read.
+	 *
+	 * @param kind			name of the kind
+	 * @return				JSONObject with the "fields" and "events" of 
+	 * 						the kind, or null for an unknown kind
+	 */
+	public synchronized JSONObject getEvents(String kind)
 	{
+		EventKind eventKind = mKinds.get(kind);
+		if (eventKind == null)
+			return null;
+
+		JSONObject record = new JSONObject();
+		JSONArray names = new JSONArray();
+
+		for (String column : eventKind.columns)
+			names.put(column);
 
-		return mMem;
+		try
+		{
+			record.put("fields", names);
+			record.put("events", eventKind.rows);
+		}
+		catch (JSONException je)
+		{
+			Log.e(TAG, "JSON Exception", je);
+		}
+
+		return record;
 	}
 	
 }
 
 
-class TagInfo
+class TagEntry
 {
-	public String tagName;
 	public int id;
-	public int type;
-	
-	public final static int ACTIVITY = 1;
-	public final static int SERVICE = 2;
-	public final static int CPU = 3;
-	public final static int MEMORY = 4;
-	
-	public TagInfo(String name, int inType)
-	{
-		tagName = name;
-		type = inType;
-		id = -1;
-	}
+	public String[] fields;
 }
 
-class ActivityTagInfo extends TagInfo
+class EventKind
 {
-	public int componentNameIndex;
-	public int actionIndex;
-	public int taskIndex;
-	
-	public ActivityTagInfo(String name)
-	{
-		super(name, TagInfo.ACTIVITY);
-		componentNameIndex = actionIndex = taskIndex = -1;
-	}
-}
+	public final String[] columns;
+	public JSONArray rows;
 
-class ServiceTagInfo extends TagInfo
-{
-	public int recordIndex;
-	public int nameIndex;
-	public int intentIndex;
-	public int pidIndex;
-	
-	public ServiceTagInfo(String name)
+	public EventKind(String[] fields)
 	{
-		super(name, TagInfo.SERVICE);
-		recordIndex = nameIndex = intentIndex = pidIndex = -1;
+		columns = new String[fields.length + 2];
+		columns[0] = "time";
+		columns[1] = "Event";
+		System.arraycopy(fields, 0, columns, 2, fields.length);
+
+		rows = new JSONArray();
 	}
-	
 }
 
-class CpuTagInfo extends TagInfo
+class TagDecoder
 {
-	public int totalIndex;
-	public int userIndex;
-	public int systemIndex;
-	public int iowaitIndex;
-	public int irqIndex;
-	public int softirqIndex;
-	
-	public CpuTagInfo(String name)
+	public final String tagName;
+	public final int[] indexes;
+	public final EventKind kind;
+
+	public TagDecoder(String name, int[] fieldIndexes, EventKind eventKind)
 	{
-		super(name, TagInfo.CPU);
-		totalIndex = userIndex = systemIndex = iowaitIndex = irqIndex = softirqIndex = -1;
+		tagName = name;
+		indexes = fieldIndexes;
+		kind = eventKind;
 	}
-}
 
-class MemTagInfo extends TagInfo
-{
-	public int memFreeIndex = -1;
-	public int buffersIndex = -1;
-	public int cachedIndex = -1;
-	public int activeIndex = -1;
-	public int inactiveIndex = -1;
-	public int anonPagesIndex = -1;
-	public int mappedIndex = -1;
-	public int slabIndex = -1;
-	public int sReclaimableIndex = -1;
-	public int sUnreclaimableIndex = -1;
-	public int pageTablesIndex = -1;
-	
-	public MemTagInfo(String name)
+	/**
+	 * Appends the row of an event to its kind. Events with a single
+	 * value do not carry an array, and their value is field 0.
+	 *
+	 * @return			false if the event has no data
+	 */
+	public boolean decode(Object data, long time)
 	{
-		super(name, TagInfo.MEMORY);
+		if (data == null)
+			return false;
+
+		Object[] values = (data instanceof Object[]) ? (Object[]) data : null;
+		JSONArray row = new JSONArray();
+		Object value;
+		int index;
+
+		row.put(time);
+		row.put(tagName);
+
+		for (int i = 0; i < indexes.length; i++)
+		{
+			index = indexes[i];
+
+			if (values == null)
+				value = (index == 0) ? data : null;
+			else if ((index >= 0) && (index < values.length))
+				value = values[index];
+			else
+				value = null;
+
+			row.put((value == null) ? JSONObject.NULL : value);
+		}
+
+		kind.rows.put(row);
+		return true;
 	}
-	
 }
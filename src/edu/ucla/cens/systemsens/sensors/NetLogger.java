@@ -1,11 +1,15 @@
 package edu.ucla.cens.systemsens.sensors;
 
-import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.TreeSet;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.net.TrafficStats;
 import android.util.Log;
 import android.os.Build;
@@ -30,15 +34,30 @@ public class NetLogger
 {
 	private static final String TAG = "NetworkProcessor";
 	
-	private static final String CAT_CMD = "/system/bin/cat";
-	
-    /** Address of the network devices stat */
-    private static final String NETDEV_PATH  = "/proc/net/dev";
-	
 	private static Context mContext;
 
     private static final double MB = 1048576.0;
 
+    /** UIDs of the installed applications in increasing order, their
+     * names and their counters at the last sample */
+    private final Object mUidLock = new Object();
+    private int[] mUids = new int[0];
+    private String[] mUidNames = new String[0];
+    private long[] mLastRx = new long[0];
+    private long[] mLastTx = new long[0];
+    private boolean[] mSampled = new boolean[0];
+    private volatile boolean mUidIndexValid = false;
+
+    private final BroadcastReceiver mPackageReceiver 
+        = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            mUidIndexValid = false;
+        }
+    };
+
 
 	
 	
@@ -52,52 +71,137 @@ public class NetLogger
 	public NetLogger(Context context)
 	{
 		mContext = context;
+
+        // The UID index only changes when packages are installed or
+        // removed
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
 	}
 	
 	/**
-	 * Updates the database with the current network statistics collected by
-	 * the system.
+	 * Returns the traffic of each UID whose counters moved since the
+	 * previous call. 
+	 * Each entry is keyed by the name the PackageManager gives the
+	 * UID: the package name, or the shared user id for packages that
+	 * share a UID. It holds the total Rx and Tx bytes, and the
+	 * dRx and dTx bytes since the previous call.
+	 * The first call after the service starts reports every UID.
 	 */
 	public JSONObject getAppNetUsage()
 	{
-		
-		// Get all UIDs
-		List<ApplicationInfo> apps = mContext.getPackageManager().getInstalledApplications(0);
-		int appsLen = apps.size();
-
 		JSONObject data, result = new JSONObject();
-		
-		// Update the database with the necessary information.
-		ApplicationInfo currApp = null;
-		long currRxBytes, currTxBytes;
-		for(int i = 0; i < appsLen; i++)
-		{
-			currApp = apps.get(i);
 
-			currRxBytes = TrafficStats.getUidRxBytes(currApp.uid);
-			currTxBytes = TrafficStats.getUidTxBytes(currApp.uid);
-			
-			if((currRxBytes != TrafficStats.UNSUPPORTED) || (currTxBytes != TrafficStats.UNSUPPORTED))
-			{
+        synchronized (mUidLock)
+        {
+            if (!mUidIndexValid)
+                buildUidIndex();
+
+            long currRxBytes, currTxBytes;
+            for (int i = 0; i < mUids.length; i++)
+            {
+                currRxBytes = TrafficStats.getUidRxBytes(mUids[i]);
+                currTxBytes = TrafficStats.getUidTxBytes(mUids[i]);
+
+                if ((currRxBytes == TrafficStats.UNSUPPORTED) 
+                        && (currTxBytes == TrafficStats.UNSUPPORTED))
+                    continue;
+
+                if (mSampled[i] && (currRxBytes == mLastRx[i]) 
+                        && (currTxBytes == mLastTx[i]))
+                    continue;
+
                 try
                 {
-                	data = new JSONObject();
+                    data = new JSONObject();
                     data.put("Rx", currRxBytes);
                     data.put("Tx", currTxBytes);
-                    
-                    result.put(currApp.packageName, data);
 
+                    if (mSampled[i])
+                    {
+                        data.put("dRx", currRxBytes - mLastRx[i]);
+                        data.put("dTx", currTxBytes - mLastTx[i]);
+                    }
+
+                    result.put(mUidNames[i], data);
                 }
                 catch (JSONException je)
                 {
                     Log.e(TAG, "Exception", je);
                 }
 
-			}
-		}
+                mLastRx[i] = currRxBytes;
+                mLastTx[i] = currTxBytes;
+                mSampled[i] = true;
+            }
+        }
 		
 		return result;
 	}
+
+
+    /**
+     * Rebuilds the list of UIDs from the installed applications. The
+     * last counters of UIDs that are still installed are kept.
+     */
+    private void buildUidIndex()
+    {
+        PackageManager pm = mContext.getPackageManager();
+		List<ApplicationInfo> apps = pm.getInstalledApplications(0);
+
+        TreeSet<Integer> uidSet = new TreeSet<Integer>();
+        for (ApplicationInfo app : apps)
+            uidSet.add(app.uid);
+
+        int count = uidSet.size();
+        int[] uids = new int[count];
+        String[] names = new String[count];
+        long[] lastRx = new long[count];
+        long[] lastTx = new long[count];
+        boolean[] sampled = new boolean[count];
+
+        int i = 0, old;
+        String name;
+        for (Integer uid : uidSet)
+        {
+            uids[i] = uid;
+
+            name = pm.getNameForUid(uid);
+            names[i] = (name != null) ? name : Integer.toString(uid);
+
+            old = Arrays.binarySearch(mUids, uid);
+            if (old >= 0)
+            {
+                lastRx[i] = mLastRx[old];
+                lastTx[i] = mLastTx[old];
+                sampled[i] = mSampled[old];
+            }
+            i++;
+        }
+
+        mUids = uids;
+        mUidNames = names;
+        mLastRx = lastRx;
+        mLastTx = lastTx;
+        mSampled = sampled;
+        mUidIndexValid = true;
+
+        Log.i(TAG, "Indexed " + count + " UIDs of " + apps.size() 
+                + " applications");
+    }
+
+
+    /**
+     * Stops listening for package changes.
+     */
+    public void release()
+    {
+        mContext.unregisterReceiver(mPackageReceiver);
+    }
+
 	
 	public JSONObject getIfNetUsage()
 	{
@@ -146,102 +250,4 @@ public class NetLogger
 		
 	}
 	
-    /**
-     * Parses and returns the contents of /proc/net/dev.
-     * It first reads the content of the file in /proc/net/dev. 
-     * This file contains a row for each network interface. 
-     * Each row contains the number of bytes and packets that have
-     * been sent and received over that network interface. This method
-     * parses this file and returns a JSONObject that maps the network
-     * interface name to this information.
-     *
-     * @return          JSONObject containing an entry for each
-     *                      physical interface. 
-     */
-    public JSONObject getNetDev()
-    {
-	
-
-        JSONObject result = new JSONObject();
-        JSONObject data;
-        StringTokenizer linest;
-        String devName, recvBytes, recvPackets, 
-               sentBytes, sentPackets, zero;
-
-        String[] args = {CAT_CMD, NETDEV_PATH};
-        ProcessBuilder cmd;
-
-        try
-        {
-           
-            cmd = new ProcessBuilder(args);
-      
-            Process process = cmd.start();
-            InputStream devstream = process.getInputStream();
-
-
-
-            byte[] buffer = new byte[2024];
-            int readlen  = devstream.read(buffer);
-
-            if ( readlen <= 0)
-            {
-                Log.e(TAG, "Could not read /proc/net/dev");
-                return result;
-            }
-            
-            StringTokenizer st = new StringTokenizer(
-                    new String(buffer), "\n", false);
-
-            //The first two lines of the file are headers
-            zero = st.nextToken();
-            zero = st.nextToken();
-
-            for (int j = 0; j < 5; j++)
-            {
-                linest = new StringTokenizer(st.nextToken());
-                devName = linest.nextToken();
-                recvBytes = linest.nextToken();
-                recvPackets = linest.nextToken();
-
-
-                // Skip six tokens
-                for (int i = 0; i < 6; i++) 
-                    zero = linest.nextToken();
-
-                sentBytes = linest.nextToken();
-                sentPackets = linest.nextToken();
-
-
-
-                data = new JSONObject();
-
-                try
-                {
-                    data.put("RxBytes", recvBytes);
-                    data.put("RxPackets", recvPackets);
-
-                    data.put("TxBytes", sentBytes);
-                    data.put("TxPackets", sentPackets);
-                    
-                    result.put(devName, data);
-
-                }
-                catch (JSONException je)
-                {
-                    Log.e(TAG, "Exception", je);
-                }
-
-            }
-
-        }
-        catch (Exception e)
-        {
-
-            Log.e(TAG, "Exception", e);
-        }
-
-
-        return result;
-    }
 }
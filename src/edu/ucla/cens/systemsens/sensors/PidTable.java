@@ -0,0 +1,262 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.sensors;
+
+
+
+/**
+ * Hash table from process ids to a fixed number of longs, such as
+ * the user and system CPU time of the process.
+ *
+ * Keys and values are kept in primitive arrays with open addressing,
+ * so lookups and updates do not box. Every entry is stamped with the
+ * generation in which it was last written. After a sampling round
+ * the caller evicts the entries of older generations, which drops
+ * the processes that have exited. Entries are evicted in place, so a
+ * round allocates nothing unless the table grows or shrinks.
+ *
+ * @author Hossein Falaki
+ */
+public class PidTable
+{
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The table shrinks when fewer than one in this many slots is
+     * used */
+    private static final int SHRINK_FACTOR = 8;
+
+    /** Number of values of each process */
+    private final int mWidth;
+
+    private int[] mKeys;
+    private long[] mValues;
+    private int[] mGenerations;
+    private int mSize = 0;
+
+
+    /**
+     * Constructor - creates a table.
+     *
+     * @param   width       number of values of each process
+     */
+    public PidTable(int width)
+    {
+        mWidth = width;
+        allocate(INITIAL_CAPACITY);
+    }
+
+
+    /**
+     * Returns the number of processes in the table.
+     *
+     * @return              number of entries
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+
+    /**
+     * Looks up a process.
+     *
+     * @param   pid         process id
+     * @param   out         receives the values of the process
+     * @return              false if the process is not in the table
+     */
+    public boolean get(int pid, long[] out)
+    {
+        int slot = find(pid);
+        if (mKeys[slot] == EMPTY)
+            return false;
+
+        System.arraycopy(mValues, slot * mWidth, out, 0, mWidth);
+        return true;
+    }
+
+
+    /**
+     * Sets the values of a process and stamps it with the given
+     * generation.
+     *
+     * @param   pid         process id
+     * @param   values      values of the process
+     * @param   generation  current sampling generation
+     */
+    public void put(int pid, long[] values, int generation)
+    {
+        int slot = find(pid);
+
+        if (mKeys[slot] == EMPTY)
+        {
+            // Keep the load factor under one half
+            if ((mSize + 1) * 2 > mKeys.length)
+            {
+                rehash(mKeys.length * 2, Integer.MIN_VALUE);
+                slot = find(pid);
+            }
+
+            mKeys[slot] = pid;
+            mSize++;
+        }
+
+        System.arraycopy(values, 0, mValues, slot * mWidth, mWidth);
+        mGenerations[slot] = generation;
+    }
+
+
+    /**
+     * Stamps a process with the given generation without changing
+     * its values.
+     *
+     * @param   pid         process id
+     * @param   generation  current sampling generation
+     * @return              false if the process is not in the table
+     */
+    public boolean touch(int pid, int generation)
+    {
+        int slot = find(pid);
+        if (mKeys[slot] == EMPTY)
+            return false;
+
+        mGenerations[slot] = generation;
+        return true;
+    }
+
+
+    /**
+     * Removes every process that was not written in the given
+     * generation.
+     *
+     * @param   generation  generation to keep
+     * @return              number of processes removed
+     */
+    public int evictOlderThan(int generation)
+    {
+        int mask = mKeys.length - 1;
+        int removed = 0;
+
+        // Start after an empty slot, so that no run of entries wraps
+        // around the start of the scan. The load factor is under one
+        // half, so there is one.
+        int start = 0;
+        while (mKeys[start] != EMPTY)
+            start++;
+
+        int slot = (start + 1) & mask;
+        for (int visited = 0; visited < mKeys.length; )
+        {
+            if ((mKeys[slot] != EMPTY) && (mGenerations[slot] < generation))
+            {
+                // The slot now holds a later entry of the run, or is
+                // empty, so it is looked at again
+                remove(slot);
+                removed++;
+                continue;
+            }
+
+            slot = (slot + 1) & mask;
+            visited++;
+        }
+
+        if ((mKeys.length > INITIAL_CAPACITY) 
+                && (mSize * SHRINK_FACTOR < mKeys.length))
+            rehash(mKeys.length / 2, Integer.MIN_VALUE);
+
+        return removed;
+    }
+
+
+    /**
+     * Empties a slot and moves the later entries of its run back, so
+     * that every entry can still be reached from its home slot.
+     */
+    private void remove(int slot)
+    {
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = slot;
+
+        while (true)
+        {
+            next = (next + 1) & mask;
+            if (mKeys[next] == EMPTY)
+                break;
+
+            // An entry whose home is after the hole has to stay
+            int home = home(mKeys[next]);
+            if (((next - home) & mask) < ((next - hole) & mask))
+                continue;
+
+            mKeys[hole] = mKeys[next];
+            System.arraycopy(mValues, next * mWidth, mValues, 
+                    hole * mWidth, mWidth);
+            mGenerations[hole] = mGenerations[next];
+            hole = next;
+        }
+
+        mKeys[hole] = EMPTY;
+        mSize--;
+    }
+
+
+    private int home(int pid)
+    {
+        return (pid * 0x9E3779B9) >>> 16 & (mKeys.length - 1);
+    }
+
+    private int find(int pid)
+    {
+        int mask = mKeys.length - 1;
+        int slot = home(pid);
+
+        while ((mKeys[slot] != EMPTY) && (mKeys[slot] != pid))
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+
+    /**
+     * Moves the entries of at least the given generation into new
+     * arrays of the given capacity.
+     */
+    private void rehash(int capacity, int minGeneration)
+    {
+        int[] keys = mKeys;
+        long[] values = mValues;
+        int[] generations = mGenerations;
+
+        allocate(capacity);
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            if ((keys[i] == EMPTY) || (generations[i] < minGeneration))
+                continue;
+
+            int slot = find(keys[i]);
+            mKeys[slot] = keys[i];
+            System.arraycopy(values, i * mWidth, mValues, slot * mWidth,
+                    mWidth);
+            mGenerations[slot] = generations[i];
+            mSize++;
+        }
+    }
+
+
+    private void allocate(int capacity)
+    {
+        mKeys = new int[capacity];
+        mValues = new long[capacity * mWidth];
+        mGenerations = new int[capacity];
+        mSize = 0;
+
+        for (int i = 0; i < capacity; i++)
+            mKeys[i] = EMPTY;
+    }
+}
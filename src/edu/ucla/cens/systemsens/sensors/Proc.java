@@ -6,24 +6,19 @@
 
 package edu.ucla.cens.systemsens.sensors;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.StringTokenizer;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.util.HashMap;
 
 import edu.ucla.cens.systemsens.util.Status;
 
 
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONObject;
 import org.json.JSONException;
 
-import java.util.List;
-import java.util.ArrayList;
-
 /**
  * Reads varios information from the /proc file system. 
  *
@@ -47,6 +42,12 @@ public class Proc
     
     /** Address of memory information file */
     private static final String MEMINFO_PATH = "/proc/meminfo";
+
+    /** Address of the kernel and CPU statistics */
+    private static final String STAT_PATH = "/proc/stat";
+
+    /** Address of the CPU information */
+    private static final String CPUINFO_PATH = "/proc/cpuinfo";
     
     private static long sTotal = 0;
     private long idle  = 0;
@@ -54,6 +55,28 @@ public class Proc
     private long system = 0;
     private long nice = 0;
 
+    /** BogoMIPS of the CPU. It does not change, so /proc/cpuinfo is
+     * only read once. */
+    private static double sCpuFreq = Double.NaN;
+
+    /** One parser per file, so that the files can be read by
+     * different threads */
+    private final ProcParser mMemParser = new ProcParser();
+    private final ProcParser mStatParser = new ProcParser();
+    private final ProcParser mNetParser = new ProcParser();
+    private static final ProcParser sPidParser = new ProcParser();
+
+    /** Keys returned by the last reads, reused while they do not
+     * change */
+    private String[] mMemKeys = new String[64];
+    private String[] mNetKeys = new String[16];
+
+    /** Byte counters of each interface at the last read of
+     * /proc/net/dev, and the time of that read */
+    private final HashMap<String, long[]> mLastNetDev 
+        = new HashMap<String, long[]>();
+    private long mLastNetDevTime = 0;
+
 
     /**
      * Constructs a Proc object. 
@@ -64,249 +87,238 @@ public class Proc
     	getCpuLoad();
     }
     
+    /**
+     * Parses and returns the contents of /proc/meminfo.
+     * Maps the name of each line, including the colon, to its value
+     * in kB.
+     *
+     * @return          JSONObject with an entry for each line
+     */
     public JSONObject getMemInfo()
     {
     	
     	JSONObject result = new JSONObject();
     	
-        StringTokenizer linest;
-        String key, value;
+        String key;
+        long value;
 
-        try
+        synchronized (mMemParser)
         {
-
-			BufferedReader reader = new BufferedReader( new 
-					InputStreamReader( new FileInputStream( MEMINFO_PATH ) ), 2048 );
-
-
-            char[] buffer = new char[2024];
-            reader.read(buffer, 0, 2000);
-            
-            
-            StringTokenizer st = new StringTokenizer(
-                    new String(buffer), "\n", false);
-
-            for (int i = 0; i < st.countTokens(); i++)
+            try
             {
+                mMemParser.read(MEMINFO_PATH);
 
-                linest = new StringTokenizer(st.nextToken());
-                key = linest.nextToken();
-                value = linest.nextToken();
-
-                try
+                for (int i = 0; !mMemParser.atEnd(); i++)
                 {
-                	result.put(key, value);
+                    if (i == mMemKeys.length)
+                    {
+                        String[] keys = new String[i * 2];
+                        System.arraycopy(mMemKeys, 0, keys, 0, i);
+                        mMemKeys = keys;
+                    }
+
+                    key = mMemParser.nextToken(mMemKeys[i]);
+                    value = mMemParser.nextLong();
+                    mMemParser.nextLine();
+
+                    if (key == null)
+                        continue;
+                    mMemKeys[i] = key;
+
+                    try
+                    {
+                        result.put(key, Long.toString(value));
+                    }
+                    catch (JSONException je)
+                    {
+                        Log.e(TAG, "Exception", je);
+                    }
                 }
-                catch (JSONException je)
-                {
-                    Log.e(TAG, "Exception", je);
-                }
-            }
 
-            reader.close();
-
-        }
-        catch (Exception e)
-        {
+            }
+            catch (Exception e)
+            {
 
-            Log.e(TAG, "Exception parsing the file", e);
+                Log.e(TAG, "Exception parsing the file", e);
+            }
         }
 
 
         return result;    	
     }
 
+
     public static long getCpuTotalTime()
     {
         return sTotal;
     }
 
 
-    public static List<Long> readProcessCpuTime(long processId)
+    /**
+     * Reads the user and system CPU time of a process in jiffies.
+     *
+     * @param   processId   process id
+     * @param   out         receives the user time and the system time
+     * @return              false if the process could not be read,
+     *                      for example because it has exited
+     */
+    public static boolean readProcessCpuTime(int processId, long[] out)
     {
+        synchronized (sPidParser)
+        {
+            try
+            {
+                sPidParser.read("/proc/" + processId + "/stat");
+
+                // The command name may contain spaces. The fields
+                // after it start with the state (field 3), utime and
+                // stime are fields 14 and 15.
+                if (!sPidParser.skipPastLast(')'))
+                    return false;
+
+                sPidParser.skipTokens(11);
+                out[0] = sPidParser.nextLong();
+                out[1] = sPidParser.nextLong();
+                return true;
+            }
+            catch( IOException ex )
+            {
+                Log.e(TAG, "Could not read /proc file", ex);
+                return false;
+            }
+        }
+    }
 
-        List res = null;
-        long utime = 0;
-        long stime = 0;
 
-    	String line;
-    	String[] toks;
+    /**
+     * Returns the BogoMIPS value of /proc/cpuinfo, reading the file
+     * the first time it is called.
+     */
+    private static synchronized double getCpuFreq()
+    {
+        if (!Double.isNaN(sCpuFreq))
+            return sCpuFreq;
 
-		try
-		{
-			BufferedReader reader = new BufferedReader( new 
-					InputStreamReader( new 
-                        FileInputStream(
-                            "/proc/" + processId + "/stat")), 512);
+        ProcParser parser = new ProcParser();
+        sCpuFreq = 0.0;
 
-			while ( (line = reader.readLine()) != null )
-			{
-                toks = line.split(" ");
+        try
+        {
+            parser.read(CPUINFO_PATH);
 
-                utime = Long.parseLong(toks[13]);
-                stime = Long.parseLong(toks[14]);
+            do
+            {
+                if (parser.matchWord("BogoMIPS") && parser.skipPast(':'))
+                {
+                    String value = parser.nextToken(null);
+                    if (value != null)
+                        sCpuFreq = Double.parseDouble(value);
+                    break;
+                }
             }
+            while (parser.nextLine());
+        }
+        catch (IOException ioe)
+        {
+            Log.e(TAG, "Exception parsing /proc/cpuinfo", ioe);
+        }
+        catch (NumberFormatException nfe)
+        {
+            Log.e(TAG, "Exception parsing /proc/cpuinfo", nfe);
+        }
 
-			reader.close();
-
-            res = new ArrayList<Long>();
-            res.add(utime);
-            res.add(stime);
-
-			
-		}
-		catch( IOException ex )
-		{
-			Log.e(TAG, "Could not read /proc file", ex);
-		}
-	
-        return res;
-
+        return sCpuFreq;
     }
+
     
     public JSONObject getCpuLoad()
     {
     	JSONObject result = new JSONObject();
     	
     	float totalUsage, userUsage, niceUsage, systemUsage;
-        Double cpuFreq = 0.0;
+        double cpuFreq = getCpuFreq();
 
-    	String line;
-    	String[] toks;
-        String[] words;
-
-        try
+        synchronized (mStatParser)
         {
-			BufferedReader reader = new BufferedReader( new 
-					InputStreamReader( new 
-                        FileInputStream( "/proc/cpuinfo" ) ), 2048 );
-
-			while ( (line = reader.readLine()) != null )
-			{
-				toks = line.split(" ");
-                words = toks[0].split("\t");
+            try
+            {
+                mStatParser.read(STAT_PATH);
 
-                if (words[0].equals("BogoMIPS"))
+                do
                 {
-                    cpuFreq = Double.parseDouble(toks[1]);
-                }
-            }
+                    if (mStatParser.matchWord("cpu"))
+                    {
+                        long currUser, currNice, currSystem, currTotal,
+                             currIdle;
+
+                        JSONObject cpuObject = new JSONObject();
+
+                        currUser = mStatParser.nextLong();
+                        currNice = mStatParser.nextLong();
+                        currSystem = mStatParser.nextLong();
+                        currTotal = currUser + currNice + currSystem;
+                        currIdle = mStatParser.nextLong();
+
+                        totalUsage = (currTotal - sTotal) * 100.0f / 
+                            (currTotal - sTotal + currIdle - idle);
+                        userUsage = (currUser - user) * 100.0f / 
+                            (currTotal - sTotal + currIdle - idle);
+                        niceUsage = (currNice - nice) * 100.0f / 
+                            (currTotal - sTotal + currIdle - idle);
+                        systemUsage = (currSystem - system) * 100.0f / 
+                            (currTotal - sTotal + currIdle - idle);
+
+
+                        sTotal = currTotal;
+                        idle = currIdle;
+                        user = currUser;
+                        nice = currNice;
+                        system = currSystem;
+
+                        // Update the Status Object
+                        Status.setCPU(totalUsage);
+
+                        try
+                        {
+                            cpuObject.put("total", totalUsage);
+                            cpuObject.put("user", userUsage);
+                            cpuObject.put("nice", niceUsage);
+                            cpuObject.put("system", systemUsage);
+                            cpuObject.put("freq", cpuFreq);
+
+                            result.put("cpu", cpuObject);
+
+                        }
+                        catch (JSONException je)
+                        {
+                            Log.e(TAG, "Exception", je);
+                        }
+                    } 
+                    else if (mStatParser.matchWord("ctxt"))
+                    {
+                        putLong(result, "ContextSwitch", 
+                                mStatParser.nextLong());
+                    }
+                    else if (mStatParser.matchWord("btime"))
+                    {
+                        putLong(result, "BootTime", 
+                                mStatParser.nextLong());
+                    }
+                    else if (mStatParser.matchWord("processes"))
+                    {
+                        putLong(result, "Processes", 
+                                mStatParser.nextLong());
+                    }				
 
-            reader.close();
+                }
+                while (mStatParser.nextLine());
 
+            }
+            catch( IOException ex )
+            {
+                Log.e(TAG, "Could not read /proc file", ex);
+            }
         }
-        catch (IOException ioe)
-        {
-            Log.e(TAG, "Exception parsing /proc/cpuinfo", ioe);
-        }
-    	
-		try
-		{
-			BufferedReader reader = new BufferedReader( new 
-					InputStreamReader( new 
-                        FileInputStream( "/proc/stat" ) ), 2048 );
-
-			while ( (line = reader.readLine()) != null )
-			{
-				toks = line.split(" ");
-				
-				if (toks[0].equals("cpu"))
-				{
-					long currUser, currNice, currSystem, currTotal,
-                         currIdle;
-					
-					JSONObject cpuObject = new JSONObject();
-					
-					currUser = Long.parseLong(toks[2]);
-					currNice = Long.parseLong(toks[3]);
-					currSystem = Long.parseLong(toks[4]);
-					currTotal = currUser + currNice + currSystem;
-					currIdle = Long.parseLong(toks[5]);
-		 
-					totalUsage = (currTotal - sTotal) * 100.0f / 
-                        (currTotal - sTotal + currIdle - idle);
-					userUsage = (currUser - user) * 100.0f / 
-                        (currTotal - sTotal + currIdle - idle);
-					niceUsage = (currNice - nice) * 100.0f / 
-                        (currTotal - sTotal + currIdle - idle);
-					systemUsage = (currSystem - system) * 100.0f / 
-                        (currTotal - sTotal + currIdle - idle);
-					
-					
-					sTotal = currTotal;
-					idle = currIdle;
-					user = currUser;
-					nice = currNice;
-					system = currSystem;
-
-                    // Update the Status Object
-                    Status.setCPU(totalUsage);
-				
-					try
-					{
-						cpuObject.put("total", totalUsage);
-						cpuObject.put("user", userUsage);
-						cpuObject.put("nice", niceUsage);
-						cpuObject.put("system", systemUsage);
-                        cpuObject.put("freq", cpuFreq);
-						
-						result.put("cpu", cpuObject);
-						
-					 }
-		            catch (JSONException je)
-		            {
-		                Log.e(TAG, "Exception", je);
-		            }
-				} 
-				else if (toks[0].equals("ctxt"))
-				{
-					String ctxt = toks[1];
-					
-					try
-					{
-						result.put("ContextSwitch", ctxt);
-					}
-		            catch (JSONException je)
-		            {
-		                Log.e(TAG, "Exception", je);
-		            }
-				}
-				else if (toks[0].equals("btime"))
-				{
-					String btime = toks[1];
-					
-					try
-					{
-						result.put("BootTime", btime);
-					}
-		            catch (JSONException je)
-		            {
-		                Log.e(TAG, "Exception", je);
-		            }
-				}
-				else if (toks[0].equals("processes"))
-				{
-					String procs = toks[1];
-					
-					try
-					{
-						result.put("Processes", procs);
-					}
-		            catch (JSONException je)
-		            {
-		                Log.e(TAG, "Exception", je);
-		            }
-				}				
-
-			}
-			
-			reader.close();		
-			
-		}
-		catch( IOException ex )
-		{
-			Log.e(TAG, "Could not read /proc file", ex);
-		}
 		
 		return result;
     }
@@ -319,7 +331,10 @@ public class Proc
      * Each row contains the number of bytes and packets that have
      * been sent and received over that network interface. This method
      * parses this file and returns a JSONObject that maps the network
-     * interface name to this information.
+     * interface name, including the colon, to this information, along
+     * with the receive and transmit rates in bytes per second since the
+     * previous call. The rates are left out on the first call for an
+     * interface and after its counters have been reset.
      *
      * @return          JSONObject containing en entry for each
      *                      physical interface. 
@@ -329,77 +344,118 @@ public class Proc
 
         JSONObject result = new JSONObject();
         JSONObject data;
-        StringTokenizer linest;
-        String devName, recvBytes, recvPackets, 
-               sentBytes, sentPackets, zero;
+        String devName;
+        long recvBytes, recvPackets, sentBytes, sentPackets;
+        long[] last;
 
 
-        try
+        synchronized (mNetParser)
         {
-                       
-			BufferedReader reader = new BufferedReader( new 
-					InputStreamReader( new FileInputStream( NETDEV_PATH ) ), 2048 );
-
-
-            char[] buffer = new char[2024];
-            reader.read(buffer, 0, 2000);
-            
-            
-            StringTokenizer st = new StringTokenizer(
-                    new String(buffer), "\n", false);
+            long now = SystemClock.elapsedRealtime();
+            double seconds = (now - mLastNetDevTime) / 1000.0;
+            mLastNetDevTime = now;
 
-            //The first two lines of the file are headers
-            zero = st.nextToken();
-            zero = st.nextToken();
-
-            for (int j = 0; j < 5; j++)
+            try
             {
-                linest = new StringTokenizer(st.nextToken());
-                devName = linest.nextToken();
-                recvBytes = linest.nextToken();
-                recvPackets = linest.nextToken();
-
-
-                // Skip six tokens
-                for (int i = 0; i < 6; i++) 
-                    zero = linest.nextToken();
 
-                sentBytes = linest.nextToken();
-                sentPackets = linest.nextToken();
+                mNetParser.read(NETDEV_PATH);
 
+                //The first two lines of the file are headers
+                mNetParser.nextLine();
+                mNetParser.nextLine();
 
-
-                data = new JSONObject();
-
-                try
+                for (int j = 0; !mNetParser.atEnd(); j++)
                 {
-                    data.put("RxBytes", recvBytes);
-                    data.put("RxPackets", recvPackets);
-
-                    data.put("TxBytes", sentBytes);
-                    data.put("TxPackets", sentPackets);
-                    
-                    result.put(devName, data);
+                    if (j == mNetKeys.length)
+                    {
+                        String[] keys = new String[j * 2];
+                        System.arraycopy(mNetKeys, 0, keys, 0, j);
+                        mNetKeys = keys;
+                    }
+
+                    devName = mNetParser.nextTokenThrough(':', 
+                            mNetKeys[j]);
+
+                    if (devName == null)
+                    {
+                        mNetParser.nextLine();
+                        continue;
+                    }
+                    mNetKeys[j] = devName;
+
+                    recvBytes = mNetParser.nextLong();
+                    recvPackets = mNetParser.nextLong();
+
+                    // Skip six tokens
+                    mNetParser.skipTokens(6);
+
+                    sentBytes = mNetParser.nextLong();
+                    sentPackets = mNetParser.nextLong();
+
+                    mNetParser.nextLine();
+
+
+                    data = new JSONObject();
+
+                    try
+                    {
+                        data.put("RxBytes", Long.toString(recvBytes));
+                        data.put("RxPackets", Long.toString(recvPackets));
+
+                        data.put("TxBytes", Long.toString(sentBytes));
+                        data.put("TxPackets", Long.toString(sentPackets));
+
+                        last = mLastNetDev.get(devName);
+                        if (last == null)
+                        {
+                            last = new long[2];
+                            mLastNetDev.put(devName, last);
+                        }
+                        else if ((seconds > 0) && (recvBytes >= last[0])
+                                && (sentBytes >= last[1]))
+                        {
+                            data.put("RxRate", 
+                                    (recvBytes - last[0]) / seconds);
+                            data.put("TxRate", 
+                                    (sentBytes - last[1]) / seconds);
+                        }
+
+                        last[0] = recvBytes;
+                        last[1] = sentBytes;
+
+                        result.put(devName, data);
+
+                    }
+                    catch (JSONException je)
+                    {
+                        Log.e(TAG, "Exception", je);
+                    }
 
                 }
-                catch (JSONException je)
-                {
-                    Log.e(TAG, "Exception", je);
-                }
 
             }
-            reader.close();
-
-        }
-        catch (Exception e)
-        {
+            catch (Exception e)
+            {
 
-            Log.e(TAG, "Exception", e);
+                Log.e(TAG, "Exception", e);
+            }
         }
 
-
         return result;
     }    
+
+
+    private static void putLong(JSONObject result, String key, 
+            long value)
+    {
+        try
+        {
+            result.put(key, Long.toString(value));
+        }
+        catch (JSONException je)
+        {
+            Log.e(TAG, "Exception", je);
+        }
+    }
     
 }
-
@@ -0,0 +1,316 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.sensors;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+
+/**
+ * Reads files of the /proc file system into a reusable byte buffer
+ * and scans them in place.
+ *
+ * The contents of /proc files are ASCII, so they are parsed as bytes
+ * without decoding them into Strings. Numbers are scanned straight
+ * into longs, and tokens that have to become Strings (such as keys)
+ * can reuse the String of the previous read when the bytes have not
+ * changed. After the buffer has grown to the size of the file a
+ * read allocates nothing but the input stream.
+ *
+ * The parser only depends on java.io, so it can be run against
+ * fixture files on a desktop JVM.
+ * An object is not thread safe; each reader should use its own.
+ *
+ * @author Hossein Falaki
+ */
+public class ProcParser
+{
+    private static final int INITIAL_SIZE = 4096;
+
+    private byte[] mBuffer = new byte[INITIAL_SIZE];
+    private int mLength = 0;
+    private int mPos = 0;
+
+
+    /**
+     * Reads the whole file into the buffer and moves to its first
+     * line.
+     *
+     * @param   path        path of the file
+     * @throws  IOException if the file could not be read
+     */
+    public void read(String path) throws IOException
+    {
+        FileInputStream in = new FileInputStream(path);
+        mLength = 0;
+        mPos = 0;
+
+        try
+        {
+            int count;
+            while (true)
+            {
+                if (mLength == mBuffer.length)
+                {
+                    byte[] bigger = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+                    mBuffer = bigger;
+                }
+
+                count = in.read(mBuffer, mLength, 
+                        mBuffer.length - mLength);
+                if (count < 0)
+                    break;
+
+                mLength += count;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Returns true if all lines have been consumed.
+     *
+     * @return              true at the end of the file
+     */
+    public boolean atEnd()
+    {
+        return mPos >= mLength;
+    }
+
+
+    /**
+     * Moves to the beginning of the next line.
+     *
+     * @return              false if there are no more lines
+     */
+    public boolean nextLine()
+    {
+        while ((mPos < mLength) && (mBuffer[mPos] != '\n'))
+            mPos++;
+
+        if (mPos < mLength)
+            mPos++;
+
+        return mPos < mLength;
+    }
+
+
+    /**
+     * Checks if the next token of the line is the given word, where a
+     * token ends at a space, a tab, a colon or the end of the line.
+     * Consumes the word if it matches.
+     *
+     * @param   word        word to match
+     * @return              true if the word matched
+     */
+    public boolean matchWord(String word)
+    {
+        skipSpaces();
+
+        int len = word.length();
+        if (mPos + len > mLength)
+            return false;
+
+        for (int i = 0; i < len; i++)
+            if (mBuffer[mPos + i] != word.charAt(i))
+                return false;
+
+        if ((mPos + len < mLength) && !isDelimiter(mBuffer[mPos + len]))
+            return false;
+
+        mPos += len;
+        return true;
+    }
+
+
+    /**
+     * Moves past the next occurrence of the given character on the
+     * current line.
+     *
+     * @param   c           character to find
+     * @return              false if the line does not contain it
+     */
+    public boolean skipPast(char c)
+    {
+        int pos = mPos;
+        while ((pos < mLength) && (mBuffer[pos] != '\n'))
+        {
+            if (mBuffer[pos] == c)
+            {
+                mPos = pos + 1;
+                return true;
+            }
+            pos++;
+        }
+        return false;
+    }
+
+
+    /**
+     * Moves past the last occurrence of the given character on the
+     * current line. Used for fields such as the command name in
+     * /proc/<pid>/stat, which may contain any character.
+     *
+     * @param   c           character to find
+     * @return              false if the line does not contain it
+     */
+    public boolean skipPastLast(char c)
+    {
+        int last = -1;
+        int pos = mPos;
+        while ((pos < mLength) && (mBuffer[pos] != '\n'))
+        {
+            if (mBuffer[pos] == c)
+                last = pos;
+            pos++;
+        }
+
+        if (last < 0)
+            return false;
+
+        mPos = last + 1;
+        return true;
+    }
+
+
+    /**
+     * Skips the given number of whitespace separated tokens.
+     *
+     * @param   count       number of tokens
+     */
+    public void skipTokens(int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            skipSpaces();
+            while ((mPos < mLength) && !isSpace(mBuffer[mPos]))
+                mPos++;
+        }
+    }
+
+
+    /**
+     * Scans the next number of the line. Leading whitespace is
+     * skipped; a number that is not there reads as 0.
+     *
+     * @return              value of the number
+     */
+    public long nextLong()
+    {
+        skipSpaces();
+
+        boolean negative = false;
+        if ((mPos < mLength) && (mBuffer[mPos] == '-'))
+        {
+            negative = true;
+            mPos++;
+        }
+
+        long value = 0;
+        byte b;
+        while (mPos < mLength)
+        {
+            b = mBuffer[mPos];
+            if ((b < '0') || (b > '9'))
+                break;
+            value = value * 10 + (b - '0');
+            mPos++;
+        }
+
+        return negative ? -value : value;
+    }
+
+
+    /**
+     * Returns the next whitespace separated token of the line. If
+     * cached holds the same characters it is returned instead of a
+     * new String.
+     *
+     * @param   cached      String returned for this token last time,
+     *                      or null
+     * @return              the token, or null at the end of the line
+     */
+    public String nextToken(String cached)
+    {
+        skipSpaces();
+
+        int start = mPos;
+        while ((mPos < mLength) && !isSpace(mBuffer[mPos]))
+            mPos++;
+
+        return toString(start, mPos, cached);
+    }
+
+
+    /**
+     * Returns the token that ends with the given character, including
+     * the character, such as "eth0:" in /proc/net/dev. 
+     *
+     * @param   end         character that ends the token
+     * @param   cached      String returned for this token last time,
+     *                      or null
+     * @return              the token, or null if the line does not
+     *                      contain the character
+     */
+    public String nextTokenThrough(char end, String cached)
+    {
+        skipSpaces();
+
+        int start = mPos;
+        if (!skipPast(end))
+            return null;
+
+        return toString(start, mPos, cached);
+    }
+
+
+    private String toString(int start, int end, String cached)
+    {
+        int len = end - start;
+        if (len == 0)
+            return null;
+
+        if ((cached != null) && (cached.length() == len))
+        {
+            int i = 0;
+            while ((i < len) && (cached.charAt(i) == mBuffer[start + i]))
+                i++;
+
+            if (i == len)
+                return cached;
+        }
+
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++)
+            chars[i] = (char) (mBuffer[start + i] & 0xff);
+
+        return new String(chars);
+    }
+
+
+    private void skipSpaces()
+    {
+        while ((mPos < mLength) && ((mBuffer[mPos] == ' ') 
+                    || (mBuffer[mPos] == '\t')))
+            mPos++;
+    }
+
+    private static boolean isSpace(byte b)
+    {
+        return (b == ' ') || (b == '\t') || (b == '\n');
+    }
+
+    private static boolean isDelimiter(byte b)
+    {
+        return isSpace(b) || (b == ':');
+    }
+}
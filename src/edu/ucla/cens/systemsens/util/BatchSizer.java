@@ -0,0 +1,109 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+
+
+/**
+ * Chooses the number of records sent in each upload request.
+ *
+ * The size follows an additive increase, multiplicative decrease
+ * rule: it grows by a fixed step after every request that completes
+ * within the target latency, and it is halved after a failed or slow
+ * request. Fast links quickly reach large batches and save round
+ * trips, while slow or flaky links fall back to small batches that
+ * are cheap to retry.
+ * Several batches may be in flight at once, so each outcome is judged
+ * against the size its batch was read with, not the current one.
+ *
+ * @author Hossein Falaki
+ */
+public class BatchSizer
+{
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final int mStep;
+    private final long mTargetLatency;
+
+    private int mSize;
+
+
+    /**
+     * Constructor - creates a batch sizer.
+     *
+     * @param   initSize        initial batch size
+     * @param   minSize         smallest batch size
+     * @param   maxSize         largest batch size
+     * @param   step            additive increase after a good request
+     * @param   targetLatency   requests slower than this many
+     *                          milliseconds shrink the batch
+     */
+    public BatchSizer(int initSize, int minSize, int maxSize, int step,
+            long targetLatency)
+    {
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mStep = step;
+        mTargetLatency = targetLatency;
+
+        mSize = clamp(initSize);
+    }
+
+
+    /**
+     * Returns the number of records to send in the next request.
+     *
+     * @return              current batch size
+     */
+    public synchronized int getSize()
+    {
+        return mSize;
+    }
+
+
+    /**
+     * Updates the batch size after a successful request.
+     *
+     * @param   count       number of records sent
+     * @param   size        batch size the records were read with
+     * @param   latency     duration of the request in milliseconds
+     */
+    public synchronized void onSuccess(int count, int size, long latency)
+    {
+        if (latency > mTargetLatency)
+            mSize = Math.min(mSize, clamp(size / 2));
+        else if ((count >= size) && (size == mSize))
+            mSize = clamp(mSize + mStep);
+
+        // A short batch (the end of the backlog) says nothing about
+        // whether a larger one would have fit, and a batch read before
+        // the size last changed says nothing about the new size, so
+        // the size is kept.
+    }
+
+
+    /**
+     * Updates the batch size after a failed request.
+     *
+     * @param   size        batch size the failed records were read with
+     */
+    public synchronized void onFailure(int size)
+    {
+        mSize = Math.min(mSize, clamp(size / 2));
+    }
+
+
+    private int clamp(int size)
+    {
+        if (size < mMinSize)
+            return mMinSize;
+
+        if (size > mMaxSize)
+            return mMaxSize;
+
+        return size;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+
+/**
+ * Holds the battery samples of a discharge session in primitive
+ * arrays, one per field.
+ *
+ * The arrays are used as a ring of fixed capacity. When it is full,
+ * a new sample replaces the oldest one, so adding a sample and reading
+ * the latest one take constant time.
+ *
+ * @author Hossein Falaki
+ */
+public class BatteryHistory
+{
+    private final long[] mTimes;
+    private final int[] mVoltages;
+    private final int[] mLevels;
+    private final long[] mCurrents;
+
+    /** Index of the oldest sample, and the number of samples */
+    private int mStart;
+    private int mSize;
+
+
+    /**
+     * Creates an empty history.
+     *
+     * @param   capacity    maximum number of samples kept, at least 2
+     */
+    public BatteryHistory(int capacity)
+    {
+        capacity = Math.max(2, capacity);
+
+        mTimes = new long[capacity];
+        mVoltages = new int[capacity];
+        mLevels = new int[capacity];
+        mCurrents = new long[capacity];
+
+        mStart = 0;
+        mSize = 0;
+    }
+
+
+    /**
+     * Adds a sample at the end of the history. If the history is
+     * full, the oldest sample is dropped.
+     *
+     * @param   time        time of the sample
+     * @param   voltage     battery voltage
+     * @param   level       battery level
+     * @param   current     battery discharge current
+     */
+    public void add(long time, int voltage, int level, long current)
+    {
+        int i;
+
+        if (mSize == mTimes.length)
+        {
+            i = mStart;
+            mStart = (mStart + 1) % mTimes.length;
+        }
+        else
+        {
+            i = (mStart + mSize) % mTimes.length;
+            mSize++;
+        }
+
+        mTimes[i] = time;
+        mVoltages[i] = voltage;
+        mLevels[i] = level;
+        mCurrents[i] = current;
+    }
+
+
+    /**
+     * Removes all the samples.
+     */
+    public void clear()
+    {
+        mStart = 0;
+        mSize = 0;
+    }
+
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public boolean isEmpty()
+    {
+        return mSize == 0;
+    }
+
+
+    /**
+     * Accessors of the i-th sample, the oldest being 0.
+     */
+    public long getTime(int i)
+    {
+        return mTimes[index(i)];
+    }
+
+    public int getVoltage(int i)
+    {
+        return mVoltages[index(i)];
+    }
+
+    public int getLevel(int i)
+    {
+        return mLevels[index(i)];
+    }
+
+    public long getCurrent(int i)
+    {
+        return mCurrents[index(i)];
+    }
+
+
+    /**
+     * Accessors of the latest sample. The history must not be empty.
+     */
+    public long getLatestTime()
+    {
+        return mTimes[index(mSize - 1)];
+    }
+
+    public int getLatestVoltage()
+    {
+        return mVoltages[index(mSize - 1)];
+    }
+
+    public int getLatestLevel()
+    {
+        return mLevels[index(mSize - 1)];
+    }
+
+    public long getLatestCurrent()
+    {
+        return mCurrents[index(mSize - 1)];
+    }
+
+
+    /**
+     * Returns the array index of the i-th sample.
+     */
+    private int index(int i)
+    {
+        return (mStart + i) % mTimes.length;
+    }
+}
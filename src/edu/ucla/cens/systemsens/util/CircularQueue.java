@@ -1,32 +1,54 @@
 package edu.ucla.cens.systemsens.util;
 
-import java.text.DecimalFormat;
-
 import edu.ucla.cens.systemlog.Log;
 
+/**
+ * Window of the last values of a counter. The difference between
+ * consecutive counter values is stored, and the statistics of the
+ * window are kept up to date as values come in, so none of the
+ * methods loop over the window.
+ *
+ * The minimum and maximum are kept with monotonic queues of the
+ * positions of the candidates, and the sum is recomputed once per
+ * pass over the window to stop rounding errors from adding up.
+ */
 public class CircularQueue
 {
     private final static String TAG = "CircularQueue";
 
     private double[] data;
     private double mLastValue;
+    private boolean mHasLastValue;
     private int mSize;
-    private int mHead;
-    private DecimalFormat mDF;
+
+    /** Number of values inserted so far */
+    private long mCount;
+
+    private double mSum;
+
+    /** Exponentially weighted average of the inserted values */
+    private double mRate;
+    private final double mAlpha;
+
+    /** Positions of the candidates for the minimum and maximum, in
+     * the order they were inserted */
+    private final long[] mMinQueue, mMaxQueue;
+    private int mMinHead, mMinLength, mMaxHead, mMaxLength;
 
     public CircularQueue(int size)
     {
-        mSize = size;
-        mHead = 0;
+        mSize = Math.max(1, size);
         mLastValue = 0.0;
+        mHasLastValue = false;
         data = new double[mSize];
 
-        for (int i = 0; i < mSize; i++)
-            data[i] = 0.0;
-
-        mDF = new DecimalFormat();
-        mDF.setMaximumFractionDigits(3);
+        mCount = 0;
+        mSum = 0.0;
+        mRate = 0.0;
+        mAlpha = 2.0 / (mSize + 1);
 
+        mMinQueue = new long[mSize];
+        mMaxQueue = new long[mSize];
 
         Log.i(TAG, "New CircularBuffer with size: " + mSize);
 
@@ -34,32 +56,94 @@ public class CircularQueue
 
     /**
      * Adds the difference between the given value and the previously
-     * added value to the circular queue. 
+     * added value to the circular queue.
      *
      * @param       value           new value
      */
     public void add(double value)
     {
-        //Log.i(TAG, "Received " + value + " to add");
-
-        if (mLastValue == 0.0)
+        if (!mHasLastValue)
         {
             Log.i(TAG, "Received first value " + value );
             mLastValue = value;
+            mHasLastValue = true;
             return;
         }
 
-        double curValue;
-        mHead = (mHead + 1) % mSize;
-
-        curValue = value - mLastValue;
-        data[mHead] = curValue;
+        double curValue = value - mLastValue;
         mLastValue = value;
 
-        Log.i(TAG, "Received " + mDF.format(value)
-                + ", Inserted " + mDF.format(curValue)
-                + ", current sum: " + mDF.format(getSum()));
+        long pos = mCount;
+        int slot = (int) (pos % mSize);
+
+        mSum += curValue - data[slot];
+        data[slot] = curValue;
+        mCount++;
+
+        if (slot == mSize - 1)
+            resum();
+
+        if (mCount == 1)
+            mRate = curValue;
+        else
+            mRate += mAlpha * (curValue - mRate);
+
+        // The value that just left the window
+        long expired = pos - mSize;
+
+        if ((mMinLength > 0) && (mMinQueue[mMinHead] <= expired))
+        {
+            mMinHead = (mMinHead + 1) % mSize;
+            mMinLength--;
+        }
+        while ((mMinLength > 0)
+                && (valueAt(mMinQueue[(mMinHead + mMinLength - 1)
+                        % mSize]) >= curValue))
+            mMinLength--;
+        mMinQueue[(mMinHead + mMinLength) % mSize] = pos;
+        mMinLength++;
+
+        if ((mMaxLength > 0) && (mMaxQueue[mMaxHead] <= expired))
+        {
+            mMaxHead = (mMaxHead + 1) % mSize;
+            mMaxLength--;
+        }
+        while ((mMaxLength > 0)
+                && (valueAt(mMaxQueue[(mMaxHead + mMaxLength - 1)
+                        % mSize]) <= curValue))
+            mMaxLength--;
+        mMaxQueue[(mMaxHead + mMaxLength) % mSize] = pos;
+        mMaxLength++;
+    }
+
+
+    private double valueAt(long pos)
+    {
+        return data[(int) (pos % mSize)];
+    }
+
+    private void resum()
+    {
+        double sum = 0.0;
+
+        for (int i = 0; i < mSize; i++)
+            sum += data[i];
+
+        mSum = sum;
+    }
+
+
+    /**
+     * Returns the last value inserted in the queue.
+     *
+     * @return          last value, or 0 if the queue is empty
+     */
+    public double getLast()
+    {
+        if (mCount == 0)
+            return 0.0;
 
+        return valueAt(mCount - 1);
     }
 
 
@@ -70,13 +154,73 @@ public class CircularQueue
      */
     public double getSum()
     {
-        double sum = 0.0;
+        return mSum;
+    }
 
-        for (int i = 0; i < mSize; i++)
-            sum += data[i];
+    /**
+     * Returns the number of values in the queue, which is at most its
+     * size.
+     *
+     * @return          number of values in the queue
+     */
+    public int getCount()
+    {
+        return (int) Math.min(mCount, mSize);
+    }
+
+    /**
+     * Returns the mean of the values in the queue.
+     *
+     * @return          mean of the queue, or NaN if it is empty
+     */
+    public double getMean()
+    {
+        int count = getCount();
+
+        if (count == 0)
+            return Double.NaN;
+
+        return mSum / count;
+    }
 
-        return sum;
+    /**
+     * Returns the smallest value in the queue.
+     *
+     * @return          minimum of the queue, or NaN if it is empty
+     */
+    public double getMin()
+    {
+        if (mMinLength == 0)
+            return Double.NaN;
+
+        return valueAt(mMinQueue[mMinHead]);
+    }
+
+    /**
+     * Returns the largest value in the queue.
+     *
+     * @return          maximum of the queue, or NaN if it is empty
+     */
+    public double getMax()
+    {
+        if (mMaxLength == 0)
+            return Double.NaN;
+
+        return valueAt(mMaxQueue[mMaxHead]);
+    }
+
+    /**
+     * Returns the exponentially weighted average of the values added
+     * to the queue. Its time constant is the size of the queue.
+     *
+     * @return          weighted average, or NaN if the queue is empty
+     */
+    public double getRate()
+    {
+        if (mCount == 0)
+            return Double.NaN;
 
+        return mRate;
     }
 
     /**
@@ -0,0 +1,200 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+//import android.util.Log;
+import edu.ucla.cens.systemlog.Log;
+
+
+/**
+ * Suppresses unchanged values of snapshot sensors before they are
+ * stored.
+ *
+ * For each filtered record type the filter remembers the last value
+ * stored for every top level key of the record. A new record only
+ * keeps the keys whose value changed, and lists the keys that
+ * disappeared under "_removed". A record without changes is not
+ * stored at all.
+ * The first record of a type, and then one record every keyframe
+ * interval, is stored in full and marked with "_keyframe", so that
+ * the server can rebuild the complete state from the last keyframe
+ * and the deltas that follow it. If a record of a type could not be
+ * stored, the next one is a keyframe, so a lost delta does not
+ * corrupt the rebuilt state. The same holds after records of the
+ * type were evicted from the database, since its last keyframe may
+ * have been among them.
+ * Records of other types are passed through unchanged.
+ *
+ * @author Hossein Falaki
+ */
+public class DeltaFilter
+{
+    private static final String TAG = "DeltaFilter";
+
+    /** Marks a full record */
+    public static final String KEYFRAME_KEY = "_keyframe";
+
+    /** Lists the keys that are no longer present */
+    public static final String REMOVED_KEY = "_removed";
+
+
+    /**
+     * Last stored state of one record type.
+     */
+    private static class TypeState
+    {
+        final HashMap<String, String> values 
+            = new HashMap<String, String>();
+
+        long lastKeyframe;
+        boolean hasKeyframe = false;
+
+        /** Eviction count of the type at the last keyframe */
+        int evictions;
+    }
+
+
+    private final SystemSensDbAdaptor mDbAdaptor;
+    private final long mKeyframeInterval;
+    private final HashMap<String, TypeState> mStates;
+
+
+    /**
+     * Constructor - creates a filter that stores records through the
+     * given database adaptor.
+     *
+     * @param   dbAdaptor           database adaptor object
+     * @param   keyframeInterval    time between two full records of a
+     *                              type in milliseconds
+     * @param   types               record types to filter
+     */
+    public DeltaFilter(SystemSensDbAdaptor dbAdaptor, 
+            long keyframeInterval, String[] types)
+    {
+        mDbAdaptor = dbAdaptor;
+        mKeyframeInterval = keyframeInterval;
+        mStates = new HashMap<String, TypeState>();
+
+        for (String type : types)
+            mStates.put(type, new TypeState());
+    }
+
+
+    /**
+     * Stores the changed part of the given record.
+     *
+     * @param   data        full snapshot of the sensor
+     * @param   type        type of the record
+     */
+    public void createEntry(JSONObject data, String type)
+    {
+        TypeState state = mStates.get(type);
+
+        if (state == null)
+        {
+            mDbAdaptor.createEntry(data, type);
+            return;
+        }
+
+        JSONObject record;
+
+        try
+        {
+            synchronized (state)
+            {
+                record = filter(state, data, 
+                        mDbAdaptor.getEvictionCount(type));
+            }
+        }
+        catch (JSONException je)
+        {
+            Log.e(TAG, "Could not filter " + type + " record", je);
+            record = data;
+        }
+
+        if ((record != null) && !mDbAdaptor.createEntry(record, type))
+        {
+            synchronized (state)
+            {
+                state.hasKeyframe = false;
+            }
+        }
+    }
+
+
+    /**
+     * Updates the state with the snapshot and returns the record to
+     * store, or null if nothing changed.
+     */
+    private JSONObject filter(TypeState state, JSONObject data,
+            int evictions) throws JSONException
+    {
+        long now = SystemClock.elapsedRealtime();
+        boolean keyframe = !state.hasKeyframe 
+            || (now - state.lastKeyframe >= mKeyframeInterval)
+            || (evictions != state.evictions);
+
+        JSONObject delta = new JSONObject();
+        HashSet<String> seen = new HashSet<String>();
+        boolean changed = false;
+
+        Iterator keys = data.keys();
+        while (keys.hasNext())
+        {
+            String key = (String) keys.next();
+            String value = String.valueOf(data.get(key));
+            seen.add(key);
+
+            String last = state.values.put(key, value);
+            if (!value.equals(last))
+            {
+                delta.put(key, data.get(key));
+                changed = true;
+            }
+        }
+
+        JSONArray removed = new JSONArray();
+        Iterator<Map.Entry<String, String>> entries 
+            = state.values.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            String key = entries.next().getKey();
+            if (!seen.contains(key))
+            {
+                removed.put(key);
+                entries.remove();
+            }
+        }
+
+        if (keyframe)
+        {
+            state.hasKeyframe = true;
+            state.lastKeyframe = now;
+            state.evictions = evictions;
+            data.put(KEYFRAME_KEY, true);
+            return data;
+        }
+
+        if (removed.length() > 0)
+        {
+            delta.put(REMOVED_KEY, removed);
+            changed = true;
+        }
+
+        return changed ? delta : null;
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+
+/**
+ * Estimates the battery drain rate from the battery samples with a
+ * Kalman filter.
+ *
+ * The state of the filter is the battery level and its drain rate in
+ * percentage points per minute. Each level sample corrects both. The
+ * level is reported in whole percents, so one sample says little, and
+ * the filter smooths over the steps of the level.
+ * The power drawn from the battery (voltage times current) changes
+ * well before the level does. A recursive least squares fit relates
+ * the energy drawn between two samples to the drop of the reported
+ * level, and a change of the power moves the predicted rate by the
+ * fitted gain. The fit only sees the raw samples, not the estimate of
+ * the filter, and the uncertainty of the gain is added to the
+ * variance of the rate, so the power does not count as information
+ * the level samples have already given.
+ *
+ * The filter starts from a rate of zero, so the first estimate lags
+ * behind the real rate. When it first has enough samples, it is
+ * warmed up: the rate is seeded with the least squares slope of the
+ * level over the battery history, and the samples of the history are
+ * filtered again from that seed.
+ *
+ * Every other sample is processed in constant time.
+ *
+ * @author Hossein Falaki
+ */
+public class DrainRateEstimator
+{
+    private static final double ONE_MINUTE = 60.0 * 1000.0;
+
+    /** Variance of a level sample: the rounding to whole percents
+     * and the lag of the level reports */
+    private static final double LEVEL_VARIANCE = 1.0 / 12.0 + 0.25;
+
+    /** Growth per minute of the variance of the level and rate */
+    private static final double LEVEL_NOISE = 1e-3;
+    private static final double RATE_NOISE = 1e-4;
+
+    /** Initial variance of the rate */
+    private static final double INITIAL_RATE_VARIANCE = 1.0;
+
+    /** Forgetting factor of the power fit */
+    private static final double FORGETTING = 0.99;
+
+    /** Initial variance of the gain, relative to the residual
+     * variance of the fit */
+    private static final double INITIAL_GAIN_VARIANCE = 1000.0;
+
+    /** The estimate is used after this many samples over this span */
+    private static final int MIN_SAMPLES = 5;
+    private static final long MIN_SPAN = 10 * 60 * 1000;
+
+    /** Width of the confidence interval, in standard deviations */
+    private static final double Z_95 = 1.96;
+
+    /** State: level and drain rate */
+    private double mLevel, mRate;
+
+    /** State covariance: [[mP00, mP01], [mP01, mP11]] */
+    private double mP00, mP01, mP11;
+
+    /** Fit of the drained level per unit of energy: the gain, its
+     * variance relative to the residual one, and the variance of the
+     * residuals */
+    private double mGain, mGainVariance;
+    private double mResidualVariance;
+    private int mPowerCount;
+
+    /** Reported level and power of the previous sample */
+    private int mLastReported;
+    private double mLastPower;
+
+    private long mFirstTime, mLastTime;
+    private int mCount;
+
+    /** Rate the filter starts from, and whether it was warmed up */
+    private double mSeedRate;
+    private boolean mWarm;
+
+
+    public DrainRateEstimator()
+    {
+        reset();
+    }
+
+
+    /**
+     * Forgets all the samples.
+     */
+    public void reset()
+    {
+        mLevel = 0.0;
+        mRate = 0.0;
+        mP00 = 0.0;
+        mP01 = 0.0;
+        mP11 = 0.0;
+
+        mGain = 0.0;
+        mGainVariance = INITIAL_GAIN_VARIANCE;
+        mResidualVariance = 2.0 * LEVEL_VARIANCE;
+        mPowerCount = 0;
+
+        mCount = 0;
+        mSeedRate = 0.0;
+        mWarm = false;
+    }
+
+
+    /**
+     * Adds the latest sample of the battery history, and warms up the
+     * filter from the whole history once it has enough samples.
+     *
+     * @param   history     battery history, must not be empty
+     */
+    public void update(BatteryHistory history)
+    {
+        add(history.getLatestTime(), history.getLatestVoltage(),
+                history.getLatestLevel(), history.getLatestCurrent());
+
+        if (!mWarm && isReady())
+            warmUp(history);
+    }
+
+
+    /**
+     * Filters the samples of the history again, starting from the
+     * least squares slope of the level over the history.
+     */
+    private void warmUp(BatteryHistory history)
+    {
+        int n = history.size();
+        long t0 = history.getTime(0);
+        double sumT = 0.0, sumL = 0.0, sumTT = 0.0, sumTL = 0.0;
+
+        for (int i = 0; i < n; i++)
+        {
+            double t = (history.getTime(i) - t0) / ONE_MINUTE;
+            double l = history.getLevel(i);
+
+            sumT += t;
+            sumL += l;
+            sumTT += t * t;
+            sumTL += t * l;
+        }
+
+        double var = n * sumTT - sumT * sumT;
+        double seed = (var > 0.0) ? -(n * sumTL - sumT * sumL) / var : 0.0;
+
+        reset();
+        mSeedRate = seed;
+
+        for (int i = 0; i < n; i++)
+            add(history.getTime(i), history.getVoltage(i),
+                    history.getLevel(i), history.getCurrent(i));
+
+        mWarm = true;
+    }
+
+
+    /**
+     * Adds a battery sample.
+     *
+     * @param   time        time of the sample in milliseconds
+     * @param   voltage     battery voltage in millivolts
+     * @param   level       battery level in percent
+     * @param   current     battery discharge current in milliamperes
+     */
+    public void add(long time, int voltage, int level, long current)
+    {
+        double power = (double) voltage * current / 1e6;
+
+        if (mCount == 0)
+        {
+            mLevel = level;
+            mRate = mSeedRate;
+            mP00 = LEVEL_VARIANCE;
+            mP01 = 0.0;
+            mP11 = INITIAL_RATE_VARIANCE;
+
+            mFirstTime = time;
+            mLastTime = time;
+            mLastReported = level;
+            mLastPower = power;
+            mCount = 1;
+            return;
+        }
+
+        double dt = (time - mLastTime) / ONE_MINUTE;
+        if (dt < 0.0)
+            dt = 0.0;
+        mLastTime = time;
+        mCount++;
+
+        // Predict: the level falls by the rate, and the rate follows
+        // the change of the power
+        mLevel -= mRate * dt;
+        double p00 = mP00 - 2.0 * dt * mP01 + dt * dt * mP11
+            + LEVEL_NOISE * dt;
+        double p01 = mP01 - dt * mP11;
+        double p11 = mP11 + RATE_NOISE * dt;
+
+        boolean hasPower = (power > 0.0) && (mLastPower > 0.0);
+        if (hasPower && (mPowerCount >= MIN_SAMPLES))
+        {
+            double change = power - mLastPower;
+            mRate += mGain * change;
+            p11 += change * change * mGainVariance * mResidualVariance;
+        }
+
+        mP00 = p00;
+        mP01 = p01;
+        mP11 = p11;
+
+        // Correct with the level
+        double s = mP00 + LEVEL_VARIANCE;
+        double k0 = mP00 / s;
+        double k1 = mP01 / s;
+        double y = level - mLevel;
+
+        mLevel += k0 * y;
+        mRate += k1 * y;
+
+        p00 = mP00 * (1.0 - k0);
+        p01 = mP01 * (1.0 - k0);
+        p11 = mP11 - k1 * mP01;
+        mP00 = p00;
+        mP01 = p01;
+        mP11 = p11;
+
+        // Fit the reported drop of the level to the energy drawn
+        // since the previous sample
+        if (hasPower && (dt > 0.0))
+        {
+            double energy = (mLastPower + power) / 2.0 * dt;
+            double error = (mLastReported - level) - mGain * energy;
+            double g = mGainVariance * energy
+                / (FORGETTING + energy * mGainVariance * energy);
+
+            mGain += g * error;
+            mGainVariance = (mGainVariance - g * energy * mGainVariance)
+                / FORGETTING;
+            mResidualVariance += (1.0 - FORGETTING)
+                * (error * error - mResidualVariance);
+            mPowerCount++;
+        }
+
+        mLastReported = level;
+        mLastPower = power;
+    }
+
+
+    /**
+     * Returns true if enough samples have been seen to use the
+     * estimate.
+     */
+    public boolean isReady()
+    {
+        return (mCount >= MIN_SAMPLES)
+            && (mLastTime - mFirstTime >= MIN_SPAN);
+    }
+
+    public int getCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * Returns the smoothed battery level in percent.
+     */
+    public double getLevel()
+    {
+        return (mCount == 0) ? Double.NaN : mLevel;
+    }
+
+    /**
+     * Returns the drain rate in percentage points per minute. The
+     * rate is positive while the battery discharges.
+     */
+    public double getRate()
+    {
+        return (mCount == 0) ? Double.NaN : mRate;
+    }
+
+    /**
+     * Returns the standard deviation of the drain rate.
+     */
+    public double getRateStdDev()
+    {
+        return (mCount == 0) ? Double.NaN : Math.sqrt(Math.max(0.0, mP11));
+    }
+
+    /**
+     * Returns the bounds of the 95% confidence interval of the drain
+     * rate.
+     */
+    public double getLowerBound()
+    {
+        return getRate() - Z_95 * getRateStdDev();
+    }
+
+    public double getUpperBound()
+    {
+        return getRate() + Z_95 * getRateStdDev();
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+
+/**
+ * Fits a linear power model on the phone with recursive least
+ * squares.
+ *
+ * Each observation is the battery drained over an interval, and the
+ * amount of each resource used in that interval. The first feature is
+ * the length of the interval, so its coefficient is the idle drain
+ * per minute. The coefficient of a resource is the battery drained
+ * per unit of the resource.
+ * Coefficients from another source, such as the server, enter as a
+ * prior: a measurement of the coefficient itself, weighted by its
+ * variance. Old observations are forgotten slowly, so the model
+ * follows changes of the phone and its use.
+ *
+ * Each observation costs O(n^2) for n features.
+ *
+ * @author Hossein Falaki
+ */
+public class ModelTrainer
+{
+    /** Name of the feature of the length of the interval */
+    public static final String BASE = "base";
+
+    /** Initial variance of the coefficients */
+    private static final double INITIAL_VARIANCE = 100.0;
+
+    /** Variance of an observation of the drained battery */
+    private static final double NOISE_VARIANCE = 0.01;
+
+    private final String[] mNames;
+    private final int mN;
+    private final double mForgetting;
+
+    /** Coefficients and their covariance */
+    private final double[] mTheta;
+    private final double[][] mP;
+
+    /** Scratch vectors, so observations do not allocate */
+    private final double[] mPx;
+
+    private int mCount;
+
+
+    /**
+     * Creates a trainer with no observations.
+     *
+     * @param   resources   names of the resources, the first feature
+     *                      BASE is added in front of them
+     * @param   forgetting  forgetting factor, close to 1
+     */
+    public ModelTrainer(String[] resources, double forgetting)
+    {
+        mN = resources.length + 1;
+        mNames = new String[mN];
+        mNames[0] = BASE;
+        System.arraycopy(resources, 0, mNames, 1, resources.length);
+
+        mForgetting = forgetting;
+        mTheta = new double[mN];
+        mP = new double[mN][mN];
+        mPx = new double[mN];
+
+        reset();
+    }
+
+
+    /**
+     * Forgets all the observations and priors.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < mN; i++)
+        {
+            mTheta[i] = 0.0;
+            for (int j = 0; j < mN; j++)
+                mP[i][j] = (i == j) ? INITIAL_VARIANCE : 0.0;
+        }
+
+        mCount = 0;
+    }
+
+
+    /**
+     * Returns the index of a feature, or -1 if there is none with the
+     * given name.
+     */
+    public int indexOf(String name)
+    {
+        for (int i = 0; i < mN; i++)
+            if (mNames[i].equals(name))
+                return i;
+
+        return -1;
+    }
+
+    public int size()
+    {
+        return mN;
+    }
+
+    public String getName(int i)
+    {
+        return mNames[i];
+    }
+
+    public double getCoefficient(int i)
+    {
+        return mTheta[i];
+    }
+
+    /**
+     * Returns the number of observations since the last reset.
+     */
+    public int getCount()
+    {
+        return mCount;
+    }
+
+
+    /**
+     * Adds a prior for a coefficient.
+     *
+     * @param   i           index of the coefficient
+     * @param   value       prior value of the coefficient
+     * @param   variance    variance of the prior value
+     */
+    public void addPrior(int i, double value, double variance)
+    {
+        double s = mP[i][i] + variance;
+        double y = value - mTheta[i];
+
+        // Gain is the i-th column of P over s
+        for (int j = 0; j < mN; j++)
+            mPx[j] = mP[j][i];
+
+        for (int j = 0; j < mN; j++)
+        {
+            mTheta[j] += mPx[j] / s * y;
+            for (int k = 0; k < mN; k++)
+                mP[j][k] -= mPx[j] * mPx[k] / s;
+        }
+    }
+
+
+    /**
+     * Adds an observation.
+     *
+     * @param   x           used amount of each feature, in the order of
+     *                      the names
+     * @param   y           battery drained in the interval
+     */
+    public void add(double[] x, double y)
+    {
+        double s = NOISE_VARIANCE;
+        double error = y;
+
+        for (int i = 0; i < mN; i++)
+        {
+            double px = 0.0;
+            for (int j = 0; j < mN; j++)
+                px += mP[i][j] * x[j];
+            mPx[i] = px;
+
+            s += x[i] * px;
+            error -= mTheta[i] * x[i];
+        }
+
+        // Forgetting inflates the covariance of the features that are
+        // not used; it stops once they are back to the initial one
+        double trace = 0.0;
+        for (int i = 0; i < mN; i++)
+            trace += mP[i][i];
+        double forgetting = (trace < mN * INITIAL_VARIANCE) 
+            ? mForgetting : 1.0;
+
+        for (int i = 0; i < mN; i++)
+        {
+            mTheta[i] += mPx[i] / s * error;
+            for (int j = 0; j < mN; j++)
+                mP[i][j] = (mP[i][j] - mPx[i] * mPx[j] / s) / forgetting;
+        }
+
+        mCount++;
+    }
+}
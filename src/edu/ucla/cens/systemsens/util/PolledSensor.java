@@ -0,0 +1,109 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+
+
+/**
+ * A sensor that is read periodically by the SensorScheduler.
+ *
+ * Each sensor has its own period and a rough cost. Cheap sensors may
+ * run well ahead of time to share a wakeup with other sensors, while
+ * expensive ones only run close to their due time. A sensor may also
+ * depend on another sensor, which then always runs right before it,
+ * and it may restrict when it runs by overriding isEnabled().
+ *
+ * @author Hossein Falaki
+ */
+public abstract class PolledSensor extends SensorPipeline.Stage
+{
+    /** Cost levels of a sensor */
+    public static final int COST_LOW = 0;
+    public static final int COST_MEDIUM = 1;
+    public static final int COST_HIGH = 2;
+
+    /** Fraction of the period a sensor of each cost level may run
+     * early, to share a wakeup */
+    private static final double[] SLACK = {0.5, 0.25, 0.1};
+
+    private final long mPeriod;
+    private final int mCost;
+    private final PolledSensor mDependency;
+
+    /** Elapsed realtime at which the sensor is next due */
+    long mNextDue;
+
+
+    /**
+     * Constructor - creates a polled sensor.
+     *
+     * @param   name        name of the sensor used in logs
+     * @param   period      time between two reads in milliseconds
+     * @param   cost        one of COST_LOW, COST_MEDIUM, COST_HIGH
+     * @param   timeout     time a read may take in milliseconds
+     */
+    public PolledSensor(String name, long period, int cost, long timeout)
+    {
+        this(name, period, cost, timeout, null);
+    }
+
+    /**
+     * Constructor - creates a polled sensor that depends on another
+     * sensor.
+     *
+     * @param   name        name of the sensor used in logs
+     * @param   period      time between two reads in milliseconds
+     * @param   cost        one of COST_LOW, COST_MEDIUM, COST_HIGH
+     * @param   timeout     time a read may take in milliseconds
+     * @param   dependency  sensor that runs before each read of
+     *                      this one, or null
+     */
+    public PolledSensor(String name, long period, int cost, long timeout,
+            PolledSensor dependency)
+    {
+        super(name, timeout);
+        mPeriod = period;
+        mCost = cost;
+        mDependency = dependency;
+    }
+
+    public long getPeriod()
+    {
+        return mPeriod;
+    }
+
+    public int getCost()
+    {
+        return mCost;
+    }
+
+    public PolledSensor getDependency()
+    {
+        return mDependency;
+    }
+
+    /**
+     * Returns how early the sensor may run to share a wakeup.
+     *
+     * @return              slack in milliseconds
+     */
+    public long getSlack()
+    {
+        return (long) (mPeriod * SLACK[mCost]);
+    }
+
+    /**
+     * Returns false if the sensor should be skipped at this time.
+     * Sensors that only make sense in some states, for example while
+     * the screen is on, override this method.
+     *
+     * @return              true if the sensor should be read
+     */
+    public boolean isEnabled()
+    {
+        return true;
+    }
+}
@@ -8,27 +8,21 @@ package edu.ucla.cens.systemsens.util;
 
 import android.os.SystemClock;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.List;
-import java.util.ArrayList;
 import java.text.SimpleDateFormat;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.DataOutputStream;
-import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
 import org.json.JSONObject;
 import org.json.JSONException;
 
@@ -43,6 +37,10 @@ import edu.ucla.cens.systemsens.SystemSens;
 /**
  * This class implements mechanisms to  receive and use power models.
  *
+ * The model is fitted on the phone from the battery samples and the
+ * resource usage between them. The model on the server, when it can
+ * be fetched, is used as a prior of the local fit.
+ *
  * @author  Hossein Falaki
  */
 public class PowerModel
@@ -85,16 +83,39 @@ public class PowerModel
     private static final long ONE_MINUTE = 1000 * 60;
     private static final long ONE_HOUR = 60 * ONE_MINUTE;
     private static final long ONE_DAY = 24 * ONE_HOUR;
+    private static final double MINUTES_PER_DAY = ONE_DAY / ONE_MINUTE;
 
     private static final long MIN_MODEL_REFRESH_INTERVAL = 
         10 * ONE_HOUR;
 
     private static final String IMEI = SystemSens.IMEI;
 
+    /** Number of the latest battery samples kept while unplugged */
+    private static final int HISTORY_SIZE = 1024;
+
+    /** Resources of the power model fitted on the phone */
+    private static final String[] RESOURCES = {"cpu", "wifi", "cell",
+        "screen", "gps"};
+
+    /** Forgetting factor of the local fit */
+    private static final double MODEL_FORGETTING = 0.995;
+
+    /** Observations before the local fit replaces the coefficients */
+    private static final int MIN_TRAINING_COUNT = 30;
+
+    /** Variance of the coefficients fetched from the server */
+    private static final double PRIOR_VARIANCE = 1.0;
+
+    private static final String CHARSET = "UTF-8";
+
+    /** Bounds of the rate change suggested to the clients */
+    private static final double MIN_RATE_CHANGE = 0.5;
+    private static final double MAX_RATE_CHANGE = 2.0;
+
 
     /** Model related members */
-    private HashMap<String, Double> mModel;
-    private HashMap<String, Double> mStats;
+    private final ConcurrentHashMap<String, Double> mModel;
+    private final ConcurrentHashMap<String, Double> mStats;
     private List mAdaptiveApps;
 
 
@@ -105,9 +126,34 @@ public class PowerModel
     private boolean mPlugged;
 
 
-    private HashMap<Long, Integer> mVoltages;
-    private HashMap<Long, Integer> mLevels;
-    private HashMap<Long, Long> mCurrents;
+    /** Latest battery samples since the phone was unplugged */
+    private BatteryHistory mHistory;
+
+    /** Drain rate estimated from the battery samples. It is updated
+     * by the battery receiver and read by the collector threads, all
+     * with the lock of this object held, so that the level, rate and
+     * bounds read together come from the same sample. */
+    private DrainRateEstimator mEstimator;
+
+    /** Local fit of the model */
+    private ModelTrainer mTrainer;
+    private double[] mFeatures;
+
+    /** Server value of each coefficient that was last added to the
+     * local fit as a prior, NaN if none was */
+    private double[] mPriors;
+
+    /** Usage reported by the clients since the last battery sample */
+    private double[] mUsage;
+
+    /** Drain rate of the interactive use from the resource stats, 
+     * recomputed when the model or the stats change */
+    private double mInteractiveRate;
+    private volatile boolean mInteractiveDirty = true;
+
+    /** Values of the last training step */
+    private long mLastSampleTime;
+    private double mLastLevel, mLastWiFi, mLastCell, mLastScreen;
 
 
     /** Deadline related parameters */
@@ -125,17 +171,22 @@ public class PowerModel
 
     /**
      * Constructor - creates an empty power model object. 
-     *
-     * @param   dbAdaptor       database adaptor object
      */
     public PowerModel()
     {
-        this.mModel = new HashMap<String, Double>();
+        this.mModel = new ConcurrentHashMap<String, Double>();
+        this.mStats = new ConcurrentHashMap<String, Double>();
         mModelDate = 0L;
 
-        mVoltages = new HashMap<Long, Integer>();
-        mLevels   = new HashMap<Long, Integer>();
-        mCurrents = new HashMap<Long, Long>();
+        mHistory = new BatteryHistory(HISTORY_SIZE);
+        mEstimator = new DrainRateEstimator();
+
+        mTrainer = new ModelTrainer(RESOURCES, MODEL_FORGETTING);
+        mFeatures = new double[mTrainer.size()];
+        mUsage = new double[mTrainer.size()];
+        mPriors = new double[mTrainer.size()];
+        Arrays.fill(mPriors, Double.NaN);
+        mLastSampleTime = 0L;
 
         mPlugged = false;
 
@@ -162,12 +213,12 @@ public class PowerModel
      * Indicates that the phone has been unplugged.
      *
      */
-    public void unplugged()
+    public synchronized void unplugged()
     {
         mPlugged = false;
-        mVoltages = new HashMap<Long, Integer>();
-        mLevels   = new HashMap<Long, Integer>();
-        mCurrents = new HashMap<Long, Long>();
+        mHistory.clear();
+        mEstimator.reset();
+        mLastSampleTime = 0L;
     }
 
 
@@ -179,19 +230,151 @@ public class PowerModel
      * @param       level       The battery level 
      * @param       current     The battery discharge current
      */ 
-    public void recordBatInfo(int voltage, int level, long current)
+    public synchronized void recordBatInfo(int voltage, int level, 
+            long current)
     {
         if (mPlugged)
             return;
 
-        Long ts = SystemClock.elapsedRealtime();
+        long ts = SystemClock.elapsedRealtime();
 
         if (current < 0)
             current = -1 * current;
 
-        mVoltages.put(ts, voltage);
-        mLevels.put(ts, level);
-        mCurrents.put(ts, current);
+        mHistory.add(ts, voltage, level, current);
+        mEstimator.update(mHistory);
+
+        train(ts);
+    }
+
+
+    /**
+     * Adds usage of a resource, reported by a client, to the next
+     * training step.
+     *
+     * @param       resource    name of the resource
+     * @param       amount      units of the resource used
+     */
+    public synchronized void addUsage(String resource, double amount)
+    {
+        int i = mTrainer.indexOf(resource);
+
+        if ((i > 0) && !Double.isNaN(amount) && (amount > 0.0))
+            mUsage[i] += amount;
+    }
+
+
+    /**
+     * Adds the battery drained since the last sample, and the
+     * resources used in that time, to the local fit of the model.
+     */
+    private void train(long ts)
+    {
+        double wifi = Status.getWiFi();
+        double cell = Status.getCell();
+        double screen = Status.getScreenTime() / ONE_MINUTE;
+        double level = mEstimator.getLevel();
+
+        if ((mLastSampleTime > 0L) && mEstimator.isReady())
+        {
+            double dt = (double)(ts - mLastSampleTime) / ONE_MINUTE;
+            double cpu = Status.getCPU();
+
+            if (dt > 0.0)
+            {
+                mFeatures[0] = dt;
+                mFeatures[mTrainer.indexOf("cpu")] = 
+                    Double.isNaN(cpu) ? 0.0 : cpu / 100.0 * dt;
+                mFeatures[mTrainer.indexOf("wifi")] = 
+                    increase(mLastWiFi, wifi);
+                mFeatures[mTrainer.indexOf("cell")] = 
+                    increase(mLastCell, cell);
+                mFeatures[mTrainer.indexOf("screen")] = 
+                    increase(mLastScreen, screen);
+                mFeatures[mTrainer.indexOf("gps")] = 
+                    mUsage[mTrainer.indexOf("gps")];
+
+                mTrainer.add(mFeatures, mLastLevel - level);
+
+                if (mTrainer.getCount() >= MIN_TRAINING_COUNT)
+                {
+                    for (int i = 0; i < mTrainer.size(); i++)
+                        mModel.put(mTrainer.getName(i), 
+                                mTrainer.getCoefficient(i));
+                    mInteractiveDirty = true;
+                }
+            }
+        }
+
+        mLastSampleTime = ts;
+        mLastLevel = level;
+        mLastWiFi = wifi;
+        mLastCell = cell;
+        mLastScreen = screen;
+
+        for (int i = 0; i < mUsage.length; i++)
+            mUsage[i] = 0.0;
+    }
+
+    private static double increase(double last, double current)
+    {
+        if (Double.isNaN(last) || Double.isNaN(current) 
+                || (current < last))
+            return 0.0;
+
+        return current - last;
+    }
+
+
+    /**
+     * Reads the whole body of a response.
+     */
+    private static String readResponse(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[1024];
+        int bytesRead;
+
+        try
+        {
+            while ((bytesRead = in.read(buff)) != -1)
+                out.write(buff, 0, bytesRead);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return out.toString(CHARSET);
+    }
+
+
+    /**
+     * Returns the battery drain rate estimated from the samples since
+     * the phone was unplugged.
+     *
+     * @return      drained percentage points per minute, or NaN if
+     *              there are not enough samples
+     */
+    public synchronized double getDrainRate()
+    {
+        if (!mEstimator.isReady())
+            return Double.NaN;
+
+        return mEstimator.getRate();
+    }
+
+
+    /**
+     * Returns the minutes left until the deadline.
+     */
+    private double minutesToDeadline()
+    {
+        Calendar deadline = (Calendar)mStartTime.clone();
+        deadline.add(Calendar.MINUTE, mDeadline);
+
+        return (double)(deadline.getTimeInMillis() 
+                - Calendar.getInstance().getTimeInMillis()) / ONE_MINUTE;
     }
 
 
@@ -216,7 +399,6 @@ public class PowerModel
 
 
 
-        //mStartLevel = (int)mLevels.get(Collections.max(mLevels.keySet()));
         mStartLevel = level;
         mSlope = -1.0 * mStartLevel/mDeadline;
 
@@ -434,7 +616,7 @@ public class PowerModel
      * @param           the rate to be multiplied by the past work to
      *                  give the future budget
      */
-    public double suggestRate(String unitName)
+    public synchronized double suggestRate(String unitName)
     {
         Log.i(TAG, "Suggesting rate");
 
@@ -451,12 +633,6 @@ public class PowerModel
         }
 
 
-        if (mModel == null)
-        {
-            Log.i(TAG, "No model found");
-            return Double.NaN;
-        }
-
         int gap = levelGap();
 
         if (gap == Integer.MAX_VALUE)
@@ -475,6 +651,39 @@ public class PowerModel
         double coef = mModel.get(unitName);
 
         Log.i(TAG, getDeadlineStr());
+
+        if (mEstimator.isReady())
+        {
+            // The drain rate that empties the battery at the deadline
+            double left = minutesToDeadline();
+            if (left <= 0.0)
+            {
+                Log.i(TAG, "Deadline already missed.");
+                return Double.NaN;
+            }
+
+            double needed = mEstimator.getLevel() / left;
+            double rate = mEstimator.getRate();
+
+            // Only act when the needed rate is outside the confidence
+            // interval of the estimate, so level steps do not flip
+            // the suggestion
+            double change = 1.0;
+            if ((needed < mEstimator.getLowerBound()) 
+                    || (needed > mEstimator.getUpperBound()))
+                change = (rate > 0.0) ? needed / rate : MAX_RATE_CHANGE;
+
+            change = Math.max(MIN_RATE_CHANGE, 
+                    Math.min(MAX_RATE_CHANGE, change));
+
+            if (Log.isLoggable(Log.INFO))
+                Log.i(TAG, "Drain rate " + rate + " ["
+                        + mEstimator.getLowerBound() + ", "
+                        + mEstimator.getUpperBound() + "], needed " 
+                        + needed + ", change " + change);
+
+            return change;
+        }
         
         if (gap <= -1)
         {
@@ -495,80 +704,95 @@ public class PowerModel
 
 
     /**
-     * Returns the allowed total units of work for the next horizon
-     * for the given unitName.
-     *
+     * Returns the battery percent drained by a unit of the given
+     * resource or work unit.
      *
-     * @param       unitName        Name of the unit to calculate rate
-     *                              for
-     * @param                       the number of allowed units for
-     *                              the next horizon.
+     * @param       unitName        name of the resource or unit
+     * @return                      coefficient of the model, or NaN if
+     *                              the model does not include it
      */
-
-    public double suggestWorkLimit(String unitName)
+    public double getCoefficient(String unitName)
     {
-        if (mPlugged)
-            return Double.NaN;
-
-        if (!mDeadlineSet)
-            return Double.NaN;
-
+        Double coef = mModel.get(unitName);
 
+        return (coef == null) ? Double.NaN : coef.doubleValue();
+    }
 
-        if ((mModel == null) || (mStats == null))
-            return Double.NaN;
 
+    /**
+     * Returns the drain rate of the interactive use of the phone, from
+     * the daily resource stats and the model. The rate is cached until
+     * the model or the stats change. Called with the lock held.
+     *
+     * @return      battery percent per minute
+     */
+    private double getInteractiveRate()
+    {
+        if (mInteractiveDirty)
+        {
+            mInteractiveDirty = false;
 
-        if (!mModel.containsKey(unitName))
-            return Double.NaN;
+            double interactive = 0.0;
+            Double mean;
 
+            for (String resource: mModel.keySet())
+            {
+                mean = mStats.get(resource);
+                if ((!mAdaptiveApps.contains(resource)) && (mean != null))
+                    interactive += mean * mModel.get(resource) 
+                        / MINUTES_PER_DAY;
+            }
 
-        long curTime =
-            Calendar.getInstance().getTimeInMillis();
+            mInteractiveRate = interactive;
+        }
 
+        return mInteractiveRate;
+    }
 
-        Calendar deadline = Calendar.getInstance();
-        deadline.add(Calendar.MINUTE, mDeadline);
-        long deadlineTime = deadline.getTimeInMillis();
 
-        long left = ((deadlineTime - curTime)/ONE_MINUTE)/1400;
+    /**
+     * Returns the drain rate that the adaptive work may use so that
+     * the battery lasts until the deadline.
+     *
+     * When the drain rate estimate is available, the interactive use
+     * is what the battery drains beyond the adaptive work; otherwise
+     * it comes from the resource stats.
+     *
+     * @param       adaptiveRate    drain rate of the adaptive work at
+     *                              its recent demand
+     * @return                      battery percent per minute, or NaN
+     *                              if no budget needs to be set
+     */
+    public synchronized double getAvailableRate(double adaptiveRate)
+    {
+        if (mPlugged || !mDeadlineSet || (mStartTime == null))
+            return Double.NaN;
 
-        if (left < 0)
+        double left = minutesToDeadline();
+        if (left <= 0.0)
         {
             Log.i(TAG, "Deadline already missed.");
             return Double.NaN;
         }
 
+        double level, interactive;
 
-        double curResource, interactive = 0.0;
-        double mean, coef;
-
-        for (String resource: mModel.keySet())
+        if (mEstimator.isReady())
         {
-            if ((!mAdaptiveApps.contains(resource)) &&
-                    (mStats.containsKey(resource)))
-            {
-                mean = mStats.get(resource);
-                coef = mModel.get(resource);
-
-                curResource = (mean * coef)/left;
-                interactive += curResource;
-            }
+            level = mEstimator.getLevel();
+            interactive = Math.max(0.0, 
+                    mEstimator.getRate() - adaptiveRate);
+        }
+        else
+        {
+            level = Status.getLevel();
+            interactive = getInteractiveRate();
         }
 
+        if (Double.isNaN(level))
+            return Double.NaN;
 
-        double available = Status.getLevel() - interactive;
-
-        if (available < 0.0)
-            available = 0.0;
-
-        double workLoad = available/mModel.get(unitName);
-            
-
-
-        return workLoad;
-
-
+        return level / left - interactive;
     }
 
 
@@ -617,9 +841,7 @@ public class PowerModel
 
         String dest = POWER_URL_BASE + IMEI;
 
-        InputStream inputstream;
-        int maxLen = 1024;
-        byte[] buff = new byte[maxLen];
+        String response;
         int respCode;
         String respMsg = "";
         HttpURLConnection con;
@@ -688,12 +910,12 @@ public class PowerModel
 
         try
         {
-            inputstream = con.getInputStream();
-            int bytesRead = inputstream.read(buff, 0, maxLen);
+            response = readResponse(con.getInputStream());
         }
         catch (Exception e)
         {
             Log.e(TAG, "Could not read", e);
+            con.disconnect();
             return false;
         }
 
@@ -703,7 +925,7 @@ public class PowerModel
 
         try
         {
-            jsonModel = new JSONObject(new String(buff));
+            jsonModel = new JSONObject(response);
         }
         catch (JSONException je)
         {
@@ -714,11 +936,34 @@ public class PowerModel
         try
         {
             String param;
+            double value;
+            int index;
             for (Iterator<String> key = jsonModel.keys();
                     key.hasNext(); )
             {
                 param = key.next();
-                mModel.put(param, (Double)jsonModel.get(param));
+                value = jsonModel.getDouble(param);
+
+                synchronized (this)
+                {
+                    // The local fit takes over once it has enough
+                    // observations. A server value enters the fit
+                    // once; the same value is not counted again at
+                    // the next refresh.
+                    index = mTrainer.indexOf(param);
+                    if ((index >= 0) && (mPriors[index] != value))
+                    {
+                        mTrainer.addPrior(index, value, PRIOR_VARIANCE);
+                        mPriors[index] = value;
+                    }
+
+                    if ((index < 0) 
+                            || (mTrainer.getCount() < MIN_TRAINING_COUNT))
+                        mModel.put(param, value);
+                    else
+                        mModel.put(param, 
+                                mTrainer.getCoefficient(index));
+                }
             }
 
         }
@@ -729,6 +974,7 @@ public class PowerModel
         }
 
 
+        mInteractiveDirty = true;
         Log.i(TAG, "Built the model: " + mModel.toString());
 
 
@@ -754,9 +1000,7 @@ public class PowerModel
 
         String dest = STATS_URL_BASE + IMEI;
 
-        InputStream inputstream;
-        int maxLen = 2024;
-        byte[] buff = new byte[maxLen];
+        String response;
         int respCode;
         String respMsg = "";
         HttpURLConnection con;
@@ -825,12 +1069,12 @@ public class PowerModel
 
         try
         {
-            inputstream = con.getInputStream();
-            int bytesRead = inputstream.read(buff, 0, maxLen);
+            response = readResponse(con.getInputStream());
         }
         catch (Exception e)
         {
             Log.e(TAG, "Could not read", e);
+            con.disconnect();
             return false;
         }
 
@@ -840,7 +1084,7 @@ public class PowerModel
 
         try
         {
-            jsonModel = new JSONObject(new String(buff));
+            jsonModel = new JSONObject(response);
         }
         catch (JSONException je)
         {
@@ -855,7 +1099,7 @@ public class PowerModel
                     key.hasNext(); )
             {
                 param = key.next();
-                mStats.put(param, (Double)jsonModel.get(param));
+                mStats.put(param, jsonModel.getDouble(param));
             }
 
         }
@@ -866,6 +1110,7 @@ public class PowerModel
         }
 
 
+        mInteractiveDirty = true;
         Log.i(TAG, "read resource stats: " + mStats.toString());
 
 
@@ -0,0 +1,153 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import org.json.JSONObject;
+
+
+/**
+ * Encodes and decodes the compact storage format of SystemSens
+ * records.
+ *
+ * A stored record contains the id of its header (user and version)
+ * and the UTF-8 JSON payload, which runs to the end of the blob. The
+ * header id refers to a row of a small dictionary table, so the
+ * strings it stands for are stored only once. The type and the time
+ * of a record are kept in their own indexed columns, and are not
+ * repeated in the blob.
+ * Records are expanded back to the full JSON envelope only when they
+ * leave the phone.
+ *
+ * @author Hossein Falaki
+ */
+public class RecordCodec
+{
+    /** Version of the binary layout, stored as the first byte */
+    public static final byte FORMAT_VERSION = 2;
+
+    /** Size of the fixed part of an encoded record */
+    private static final int HEADER_SIZE = 1 + 4;
+
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Holds the fields of a decoded record.
+     */
+    public static class Record
+    {
+        public int headerId;
+        public String payload;
+    }
+
+
+    /**
+     * Encodes a record in the compact format.
+     *
+     * @param   headerId    id of the (user, version) header
+     * @param   payload     JSON string of the record data
+     * @return              encoded record
+     */
+    public static byte[] encode(int headerId, String payload)
+    {
+        byte[] payloadBytes = toBytes(payload);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                + payloadBytes.length);
+
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(headerId);
+        buffer.put(payloadBytes);
+
+        return buffer.array();
+    }
+
+
+    /**
+     * Decodes a record into the given holder.
+     *
+     * @param   blob        encoded record
+     * @param   record      holder that receives the fields
+     * @return              false if the blob is not a valid record
+     */
+    public static boolean decode(byte[] blob, Record record)
+    {
+        if ((blob == null) || (blob.length < HEADER_SIZE))
+            return false;
+
+        ByteBuffer buffer = ByteBuffer.wrap(blob);
+
+        if (buffer.get() != FORMAT_VERSION)
+            return false;
+
+        record.headerId = buffer.getInt();
+        int length = buffer.remaining();
+
+        try
+        {
+            record.payload = new String(blob, buffer.position(), length,
+                    CHARSET);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Builds the JSON envelope that SystemSens records have always
+     * been uploaded and broadcast with. The payload is copied as is,
+     * so it is not parsed again.
+     *
+     * @param   date        formatted date of the record
+     * @param   time        epoch time of the record in milliseconds
+     * @param   user        user identifier (IMEI), may be null
+     * @param   type        type of the record
+     * @param   ver         SystemSens version, may be null
+     * @param   payload     JSON string of the record data
+     * @return              JSON string of the full record
+     */
+    public static String toJson(String date, long time, String user,
+            String type, String ver, String payload)
+    {
+        StringBuilder sb = new StringBuilder(payload.length() + 128);
+
+        sb.append("{\"date\":").append(JSONObject.quote(date));
+        sb.append(",\"time_stamp\":").append(time);
+
+        if (user != null)
+            sb.append(",\"user\":").append(JSONObject.quote(user));
+
+        sb.append(",\"type\":").append(JSONObject.quote(type));
+
+        if (ver != null)
+            sb.append(",\"ver\":").append(JSONObject.quote(ver));
+
+        sb.append(",\"data\":").append(payload);
+        sb.append('}');
+
+        return sb.toString();
+    }
+
+
+    private static byte[] toBytes(String str)
+    {
+        try
+        {
+            return str.getBytes(CHARSET);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            // UTF-8 is always supported
+            return str.getBytes();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Limits how much data SystemSens keeps on the phone while it waits
+ * for an upload.
+ *
+ * Records older than the maximum age are dropped. When the database
+ * grows past the maximum size, records are evicted oldest first,
+ * one type at a time in the given eviction order. High volume types
+ * should come first, so that low volume records such as battery and
+ * screen events are kept the longest. Types that are not listed are
+ * only evicted once none of the listed types are left.
+ *
+ * @author Hossein Falaki
+ */
+public class RetentionPolicy
+{
+    /** Value of a limit that is not enforced */
+    public static final long UNLIMITED = -1;
+
+    private final long mMaxBytes;
+    private final long mMaxAge;
+    private final List<String> mEvictionOrder;
+
+
+    /**
+     * Constructor - creates a retention policy.
+     *
+     * @param   maxBytes        maximum size of the stored records in
+     *                          bytes, or UNLIMITED
+     * @param   maxAge          maximum age of a record in
+     *                          milliseconds, or UNLIMITED
+     * @param   evictionOrder   record types in the order they are
+     *                          evicted
+     */
+    public RetentionPolicy(long maxBytes, long maxAge, 
+            String[] evictionOrder)
+    {
+        mMaxBytes = maxBytes;
+        mMaxAge = maxAge;
+
+        ArrayList<String> order = new ArrayList<String>();
+        for (String type : evictionOrder)
+            order.add(type);
+        mEvictionOrder = Collections.unmodifiableList(order);
+    }
+
+    /**
+     * Returns the maximum size of the stored records.
+     *
+     * @return              size in bytes, or UNLIMITED
+     */
+    public long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the maximum age of a stored record.
+     *
+     * @return              age in milliseconds, or UNLIMITED
+     */
+    public long getMaxAge()
+    {
+        return mMaxAge;
+    }
+
+    /**
+     * Returns the record types in the order they are evicted.
+     *
+     * @return              list of record types
+     */
+    public List<String> getEvictionOrder()
+    {
+        return mEvictionOrder;
+    }
+}
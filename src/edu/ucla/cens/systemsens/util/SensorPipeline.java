@@ -0,0 +1,316 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CancellationException;
+
+import android.os.SystemClock;
+
+//import android.util.Log;
+import edu.ucla.cens.systemlog.Log;
+
+
+/**
+ * Runs the polling sensors of SystemSens off the main thread.
+ *
+ * A poll is a list of stages. The stages are independent of each
+ * other and run in parallel on a pool of collector threads, so the
+ * duration of a poll is that of its slowest stage rather than the
+ * sum of all of them. Each stage has its own timeout; a stage that
+ * does not finish in time is interrupted and the poll goes on
+ * without it.
+ * When all stages have finished or timed out, the completion task
+ * of the poll runs. Only one poll runs at a time.
+ * Interrupting a stage does not stop a read that is blocked in file
+ * or binder I/O, so the sensors of a timed out stage count as running
+ * until its task returns. Later polls skip the stages that would run
+ * them again in the meantime.
+ *
+ * @author Hossein Falaki
+ */
+public class SensorPipeline
+{
+    private static final String TAG = "SensorPipeline";
+
+    /**
+     * A unit of work of a poll. The name of a stage that runs several
+     * sensors joins their names with '+'.
+     */
+    public static abstract class Stage implements Runnable
+    {
+        private final String mName;
+        private final long mTimeout;
+
+        /**
+         * Constructor - creates a stage.
+         *
+         * @param   name        name of the stage used in logs
+         * @param   timeout     time the stage may take in milliseconds
+         */
+        public Stage(String name, long timeout)
+        {
+            mName = name;
+            mTimeout = timeout;
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+
+        public long getTimeout()
+        {
+            return mTimeout;
+        }
+    }
+
+
+    /** Runs the stages */
+    private final ExecutorService mCollectors;
+
+    /** Waits for the stages and runs the completion tasks */
+    private final ExecutorService mCoordinator;
+
+    /** Set while a poll is running */
+    private final AtomicBoolean mBusy = new AtomicBoolean(false);
+
+    /** Names of the sensors whose tasks have not returned yet.
+     * Guarded by itself. */
+    private final HashSet<String> mRunning = new HashSet<String>();
+
+
+    /**
+     * Runs a stage on a collector thread and marks its sensors as
+     * running until it returns. The task runs at most once: either
+     * it claims itself and runs, or it was cancelled before it
+     * started and the coordinator releases its sensors.
+     */
+    private class Task implements Runnable
+    {
+        final Stage stage;
+        final String[] sensors;
+        private final AtomicBoolean mClaimed = new AtomicBoolean(false);
+
+        Task(Stage stage, String[] sensors)
+        {
+            this.stage = stage;
+            this.sensors = sensors;
+        }
+
+        public void run()
+        {
+            if (mClaimed.getAndSet(true))
+                return;
+
+            try
+            {
+                stage.run();
+            }
+            finally
+            {
+                release(sensors);
+            }
+        }
+
+        /**
+         * Releases the sensors of a task that was cancelled before it
+         * started.
+         */
+        void releaseIfNotStarted()
+        {
+            if (!mClaimed.getAndSet(true))
+                release(sensors);
+        }
+    }
+
+
+    /**
+     * Constructor - creates a pipeline with the given number of
+     * collector threads. With one thread per sensor a stage never
+     * waits for a thread, even while stuck tasks hold some of them.
+     *
+     * @param   threads     number of stages that may run at once
+     */
+    public SensorPipeline(int threads)
+    {
+        mCollectors = Executors.newFixedThreadPool(threads);
+        mCoordinator = Executors.newSingleThreadExecutor();
+    }
+
+
+    /**
+     * Starts a poll and returns immediately. 
+     * If the previous poll is still running nothing is started and
+     * onComplete is not run.
+     *
+     * @param   stages      stages of the poll
+     * @param   onComplete  task run after all stages have finished
+     *                      or timed out, even if a stage failed
+     * @return              false if a poll is already running
+     */
+    public boolean poll(final List<Stage> stages, 
+            final Runnable onComplete)
+    {
+        if (!mBusy.compareAndSet(false, true))
+        {
+            Log.i(TAG, "Previous poll is still running");
+            return false;
+        }
+
+        mCoordinator.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    runStages(stages);
+                }
+                finally
+                {
+                    try
+                    {
+                        onComplete.run();
+                    }
+                    finally
+                    {
+                        mBusy.set(false);
+                    }
+                }
+            }
+        });
+
+        return true;
+    }
+
+
+    /**
+     * Returns true while a poll is running. The poll releases the
+     * CPU wake lock when it is done.
+     *
+     * @return              true if a poll is running
+     */
+    public boolean isBusy()
+    {
+        return mBusy.get();
+    }
+
+
+    /**
+     * Stops the pipeline. A running poll is interrupted.
+     */
+    public void shutdown()
+    {
+        mCoordinator.shutdownNow();
+        mCollectors.shutdownNow();
+    }
+
+
+    private void runStages(List<Stage> stages)
+    {
+        long start = SystemClock.elapsedRealtime();
+
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        for (Stage stage : stages)
+        {
+            String[] sensors = stage.getName().split("\\+");
+            if (!claim(sensors))
+            {
+                Log.e(TAG, "Stage " + stage.getName() 
+                        + " skipped, still running");
+                continue;
+            }
+
+            Task task = new Task(stage, sensors);
+            tasks.add(task);
+            futures.add(mCollectors.submit(task));
+        }
+
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            Task task = tasks.get(i);
+            Future<?> future = futures.get(i);
+            long remaining = start + task.stage.getTimeout() 
+                - SystemClock.elapsedRealtime();
+
+            try
+            {
+                future.get(Math.max(remaining, 0), 
+                        TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException te)
+            {
+                Log.e(TAG, "Stage " + task.stage.getName() 
+                        + " timed out");
+                future.cancel(true);
+                task.releaseIfNotStarted();
+            }
+            catch (ExecutionException ee)
+            {
+                Log.e(TAG, "Stage " + task.stage.getName() + " failed", 
+                        ee);
+            }
+            catch (CancellationException ce)
+            {
+                Log.e(TAG, "Stage " + task.stage.getName() 
+                        + " cancelled");
+                task.releaseIfNotStarted();
+            }
+            catch (InterruptedException ie)
+            {
+                Log.e(TAG, "Poll interrupted");
+                for (int j = 0; j < tasks.size(); j++)
+                {
+                    futures.get(j).cancel(true);
+                    tasks.get(j).releaseIfNotStarted();
+                }
+                return;
+            }
+        }
+
+        Log.i(TAG, "Poll took " + (SystemClock.elapsedRealtime() 
+                    - start) + " ms");
+    }
+
+
+    /**
+     * Marks the sensors as running, unless one of them already is.
+     *
+     * @return              false if a sensor is still running
+     */
+    private boolean claim(String[] sensors)
+    {
+        synchronized (mRunning)
+        {
+            for (String sensor : sensors)
+                if (mRunning.contains(sensor))
+                    return false;
+
+            for (String sensor : sensors)
+                mRunning.add(sensor);
+            return true;
+        }
+    }
+
+    private void release(String[] sensors)
+    {
+        synchronized (mRunning)
+        {
+            for (String sensor : sensors)
+                mRunning.remove(sensor);
+        }
+    }
+}
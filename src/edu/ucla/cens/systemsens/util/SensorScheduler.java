@@ -0,0 +1,188 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//import android.util.Log;
+import edu.ucla.cens.systemlog.Log;
+
+
+/**
+ * Decides which polled sensors run at each wakeup and when the next
+ * wakeup should be.
+ *
+ * A wakeup runs every sensor that is due, plus every sensor that
+ * would become due within its slack, so that sensors with nearby due
+ * times share one wakeup instead of each waking the phone.
+ * A sensor whose dependency does not run in the same wakeup gets it
+ * run first, in the same stage.
+ * The due times of the sensors move ahead only once their poll has
+ * started, so a wakeup that finds the pipeline busy does not skip
+ * the readings.
+ *
+ * @author Hossein Falaki
+ */
+public class SensorScheduler
+{
+    private static final String TAG = "SensorScheduler";
+
+    private final List<PolledSensor> mSensors;
+
+
+    /**
+     * Constructor - creates a scheduler for the given sensors. Each
+     * sensor is first due one period from now.
+     *
+     * @param   sensors     sensors to schedule
+     * @param   now         current elapsed realtime
+     */
+    public SensorScheduler(List<PolledSensor> sensors, long now)
+    {
+        mSensors = new ArrayList<PolledSensor>(sensors);
+
+        for (PolledSensor sensor : mSensors)
+            sensor.mNextDue = now + sensor.getPeriod();
+    }
+
+
+    /**
+     * Returns the number of sensors.
+     *
+     * @return              number of sensors
+     */
+    public int size()
+    {
+        return mSensors.size();
+    }
+
+
+    /**
+     * Returns the enabled sensors that are due now. A disabled sensor
+     * that is due is skipped and its due time moves one period ahead.
+     * The due times of the returned sensors do not change until
+     * advance is called.
+     *
+     * @param   now         current elapsed realtime
+     * @return              sensors to run
+     */
+    public synchronized List<PolledSensor> dueSensors(long now)
+    {
+        ArrayList<PolledSensor> due = new ArrayList<PolledSensor>();
+
+        for (PolledSensor sensor : mSensors)
+        {
+            if (sensor.mNextDue - sensor.getSlack() > now)
+                continue;
+
+            if (sensor.isEnabled())
+                due.add(sensor);
+            else
+                sensor.mNextDue = now + sensor.getPeriod();
+        }
+
+        return due;
+    }
+
+
+    /**
+     * Returns the stages that run the given sensors.
+     *
+     * @param   due         sensors returned by dueSensors
+     * @return              stages to run
+     */
+    public List<SensorPipeline.Stage> getStages(List<PolledSensor> due)
+    {
+        ArrayList<SensorPipeline.Stage> stages 
+            = new ArrayList<SensorPipeline.Stage>();
+        StringBuilder names = new StringBuilder();
+
+        for (PolledSensor sensor : due)
+        {
+            // Sensors that a due sensor depends on run in its stage
+            if (isDependency(sensor, due))
+                continue;
+
+            stages.add(withDependencies(sensor));
+            names.append(sensor.getName()).append(' ');
+        }
+
+        Log.i(TAG, "Running " + names.toString());
+        return stages;
+    }
+
+
+    /**
+     * Moves the due time of each sensor of a started poll one period
+     * ahead. A dependency that runs in the stage of a sensor counts as
+     * a regular read, so its due time moves ahead too.
+     *
+     * @param   due         sensors returned by dueSensors
+     * @param   now         elapsed realtime the sensors were due at
+     */
+    public synchronized void advance(List<PolledSensor> due, long now)
+    {
+        for (PolledSensor sensor : due)
+            for (PolledSensor s = sensor; s != null; 
+                    s = s.getDependency())
+                s.mNextDue = now + s.getPeriod();
+    }
+
+
+    /**
+     * Returns the elapsed realtime of the next wakeup.
+     *
+     * @return              time the earliest sensor is due
+     */
+    public synchronized long getNextWakeup()
+    {
+        long next = Long.MAX_VALUE;
+
+        for (PolledSensor sensor : mSensors)
+            if (sensor.mNextDue < next)
+                next = sensor.mNextDue;
+
+        return next;
+    }
+
+
+    private static boolean isDependency(PolledSensor sensor,
+            List<PolledSensor> due)
+    {
+        for (PolledSensor other : due)
+            if (other.getDependency() == sensor)
+                return true;
+
+        return false;
+    }
+
+
+    /**
+     * Returns a stage that runs the dependencies of the sensor and
+     * then the sensor.
+     */
+    private static SensorPipeline.Stage withDependencies(
+            final PolledSensor sensor)
+    {
+        final PolledSensor dependency = sensor.getDependency();
+        if (dependency == null)
+            return sensor;
+
+        final SensorPipeline.Stage first = withDependencies(dependency);
+
+        return new SensorPipeline.Stage(first.getName() + "+" 
+                + sensor.getName(), 
+                first.getTimeout() + sensor.getTimeout())
+        {
+            public void run()
+            {
+                first.run();
+                sensor.run();
+            }
+        };
+    }
+}
@@ -57,6 +57,8 @@ public class Status
     
     private static long sScreenOn = Calendar.getInstance().getTimeInMillis();
 
+    private static boolean sScreenIsOn = true;
+
     private static boolean sPlugged = false;
 
     /* Hashtable object that contains status information */
@@ -221,6 +223,7 @@ public class Status
         check();
         setTotal(EVENTS, 1.0);
         sScreenOn = Calendar.getInstance().getTimeInMillis();
+        sScreenIsOn = true;
     }
 
 
@@ -228,7 +231,28 @@ public class Status
     {
         check();
         long current = Calendar.getInstance().getTimeInMillis();
-        setTotal(SCREEN, current - sScreenOn);
+        if (sScreenIsOn)
+            setTotal(SCREEN, current - sScreenOn);
+        sScreenIsOn = false;
+    }
+
+    /**
+     * Returns the total time the screen has been on, including the
+     * current period if the screen is on now.
+     *
+     * @return             screen time in milliseconds
+     */
+    public static double getScreenTime()
+    {
+        check();
+        double total = get(SCREEN);
+        if (Double.isNaN(total))
+            total = 0.0;
+
+        if (sScreenIsOn)
+            total += Calendar.getInstance().getTimeInMillis() - sScreenOn;
+
+        return total;
     }
 
 
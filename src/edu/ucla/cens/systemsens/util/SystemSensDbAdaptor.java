@@ -7,12 +7,19 @@ package edu.ucla.cens.systemsens.util;
 
 
 import org.json.JSONObject;
-import org.json.JSONException;
 
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 import java.util.Calendar;
-import java.util.HashSet;
+import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -22,6 +29,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.PowerManager;
+import android.os.SystemClock;
 
 
 //import android.util.Log;
@@ -40,9 +48,6 @@ public class SystemSensDbAdaptor
 {
 
 
-    private static final String VER = SystemSens.VER;
-    private static final String IMEI = SystemSens.IMEI;
-
     public static final String KEY_DATARECORD = "datarecord";
     public static final String KEY_ROWID = "_id";
     public static final String KEY_TYPE = "recordtype";
@@ -55,20 +60,73 @@ public class SystemSensDbAdaptor
 
     private long mDbBirthDate;
     
-    /** Database creation sql statement */
-    private static final String DATABASE_CREATE =
-            "create table systemsens (_id integer primary key "
-           + "autoincrement, recordtime text not null, " 
-           + "recordtype text not null, datarecord text not null);";
-
-
-    private static final String DATABASE_DROP = 
-        "DROP TABLE IF EXISTS systemsens";
+    /** Partition creation sql statement. Records are stored in one
+     * table per day, named systemsens_<day>.
+     * _id is assigned by the writer and grows across partitions,
+     * recordtime is the epoch time in milliseconds, recordtype refers
+     * to recordtypes and datarecord holds the record encoded by
+     * RecordCodec. */
+    private static final String PARTITION_CREATE =
+            "create table %1$s (_id integer primary key, "
+           + "recordtime integer not null, " 
+           + "recordtype integer not null, datarecord blob not null);";
+
+    private static final String PARTITION_TYPE_INDEX =
+        "create index %1$s_type on %1$s (recordtype, recordtime);";
+    private static final String PARTITION_TIME_INDEX =
+        "create index %1$s_time on %1$s (recordtime);";
+
+    /** Catalog of the partitions. minid and maxid bound the row ids
+     * of a partition, mintime and maxtime its record times. */
+    private static final String PARTITIONS_CREATE =
+        "create table partitions (day integer primary key, "
+        + "minid integer not null, maxid integer not null, "
+        + "mintime integer not null, maxtime integer not null);";
+
+    /** Header table. Each row is a (user, version) pair. */
+    private static final String HEADER_CREATE =
+        "create table recordheader (_id integer primary key "
+        + "autoincrement, user text, ver text);";
+
+    /** Dictionary of record type names */
+    private static final String TYPES_CREATE =
+        "create table recordtypes (_id integer primary key "
+        + "autoincrement, name text not null unique);";
+
+
+    /** Insert statement used for batched writes */
+    private static final String PARTITION_INSERT =
+        "INSERT INTO %1$s (_id, recordtime, recordtype, datarecord) "
+        + "VALUES (?, ?, ?, ?);";
+
+    private static final String PARTITION_DROP = 
+        "DROP TABLE IF EXISTS %1$s";
+    private static final String PARTITIONS_DROP = 
+        "DROP TABLE IF EXISTS partitions";
+    private static final String HEADER_DROP = 
+        "DROP TABLE IF EXISTS recordheader";
+    private static final String TYPES_DROP = 
+        "DROP TABLE IF EXISTS recordtypes";
     
     
     private static final String DATABASE_NAME = "data";
     private static final String DATABASE_TABLE = "systemsens";
-    private static final int DATABASE_VERSION = 4;
+    private static final String HEADER_TABLE = "recordheader";
+    private static final String TYPES_TABLE = "recordtypes";
+    private static final String PARTITIONS_TABLE = "partitions";
+    private static final int DATABASE_VERSION = 6;
+
+    private static final String KEY_USER = "user";
+    private static final String KEY_VER = "ver";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_DAY = "day";
+    private static final String KEY_MINID = "minid";
+    private static final String KEY_MAXID = "maxid";
+    private static final String KEY_MINTIME = "mintime";
+    private static final String KEY_MAXTIME = "maxtime";
+
+    private static final String[] RECORD_COLUMNS = new String[] {
+        KEY_ROWID, KEY_TIME, KEY_TYPE, KEY_DATARECORD};
 
     private static final long ONE_MINUTE = 1000 * 60;
     private static final long ONE_HOUR = 60 * ONE_MINUTE;
@@ -76,21 +134,117 @@ public class SystemSensDbAdaptor
 
     private static final long MIN_TICKLE_INTERVAL = ONE_HOUR;
 
+    /** Maximum number of records evicted after each commit */
+    private static final int EVICTION_CHUNK = 200;
+
+    /** Bytes a record takes besides its blob: the other columns and
+     * the index entries */
+    private static final int ROW_OVERHEAD = 48;
+
+    /** The size of the database is checked at most this often */
+    private static final long SIZE_CHECK_INTERVAL = 10 * ONE_MINUTE;
+
+    /** Maximum number of records waiting to be handed to the writer */
+    private static final int MAX_QUEUE_SIZE = 1024;
+
+    /** Records are committed once this many are waiting, even
+     * without a flush */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /** Records kept for a retry after a failed commit. The oldest are
+     * dropped beyond this. */
+    private static final int MAX_RETAINED = 4 * MAX_BATCH_SIZE;
+
+    /** Longest time createEntry() waits for room in the write queue */
+    private static final long ENQUEUE_TIMEOUT = 500;
+
+    /** Markers passed through the write queue */
+    private static final ContentValues FLUSH_MARKER = new ContentValues();
+    private static final ContentValues STOP_MARKER = new ContentValues();
+
 
 
     private SimpleDateFormat mSDF;
+    private SimpleDateFormat mExpandSDF;
+
+    /** Caches of the header and type dictionary tables */
+    private int mHeaderId = -1;
+    private final HashMap<Integer, String[]> mHeaders;
+    private final HashMap<String, Integer> mTypeIds;
+    private final HashMap<Integer, String> mTypeNames;
+    private final RecordCodec.Record mDecoded;
+
+    /** Partitions ordered by day, and so by row id. The last one is
+     * the active partition that new records are written to. */
+    private final ArrayList<Partition> mPartitions;
+
+    /** Row id of the next record */
+    private long mNextId = 1;
+
+    /** Limits on the stored records, or null */
+    private volatile RetentionPolicy mRetention;
 
-    private HashSet<ContentValues> mBuffer;
-    private HashSet<ContentValues> tempBuffer;
+    /** Time of the next size check, and the bytes still to be
+     * evicted after the last one. Only used by the writer thread. */
+    private long mNextSizeCheck = 0L;
+    private long mExcessBytes = 0L;
 
-    private boolean mOpenLock = false;
-    private boolean mFlushLock = false;
+    /** Number of evictions that may have removed records of any
+     * type, and of the ones that removed records of a single type.
+     * Only changed by the writer thread. */
+    private volatile int mEvictions = 0;
+    private final ConcurrentHashMap<String, Integer> mTypeEvictions;
+
+    /** Records handed from createEntry() to the writer thread */
+    private final BlockingQueue<ContentValues> mQueue;
+
+    /** The single thread that writes to the database */
+    private final Thread mWriter;
+
+    /** Set once the writer has exited. Guarded by mQueue, so a flush
+     * request is never left in the queue without a writer to release
+     * its wake lock. */
+    private boolean mStopped = false;
+
+    /** Statistics of the last flush */
+    private volatile int mLastFlushCount = 0;
+    private volatile long mLastFlushTime = 0L;
 
 
     //private final Context mCtx;
     private final PowerManager.WakeLock mWL;
     private final SystemSens mSystemSens;
 
+    /**
+     * In memory copy of a row of the partition catalog.
+     */
+    private static class Partition
+    {
+        final long day;
+        final String table;
+
+        long minId;
+        long maxId;
+        long minTime;
+        long maxTime;
+
+        /** Bytes of the records evicted from the partition. Deleted
+         * rows seldom free whole pages, so the file only shrinks
+         * when the partition is dropped. */
+        long evictedBytes;
+
+        Partition(long day)
+        {
+            this.day = day;
+            this.table = DATABASE_TABLE + "_" + day;
+        }
+
+        boolean isEmpty()
+        {
+            return maxId < minId;
+        }
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper 
     {
 
@@ -102,7 +256,9 @@ public class SystemSensDbAdaptor
         @Override
         public void onCreate(SQLiteDatabase db) 
         {
-            db.execSQL(DATABASE_CREATE);
+            db.execSQL(PARTITIONS_CREATE);
+            db.execSQL(HEADER_CREATE);
+            db.execSQL(TYPES_CREATE);
         }
 
         @Override
@@ -113,7 +269,23 @@ public class SystemSensDbAdaptor
                     + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
 
-            db.execSQL(DATABASE_DROP);
+            // Record tables of all versions: the single table of
+            // old versions and the partitions of this one.
+            Cursor c = db.query("sqlite_master", new String[] {"name"},
+                    "type = 'table' AND name LIKE ?", 
+                    new String[] {DATABASE_TABLE + "%"},
+                    null, null, null);
+            ArrayList<String> tables = new ArrayList<String>();
+            while (c.moveToNext())
+                tables.add(c.getString(0));
+            c.close();
+
+            for (String table : tables)
+                db.execSQL(String.format(PARTITION_DROP, table));
+
+            db.execSQL(PARTITIONS_DROP);
+            db.execSQL(HEADER_DROP);
+            db.execSQL(TYPES_DROP);
             onCreate(db);
         }
     }
@@ -128,20 +300,33 @@ public class SystemSensDbAdaptor
     {
         //this.mCtx = systemsens;
         this.mSystemSens = systemsens;
-        mBuffer = new HashSet<ContentValues>(); 
+        mQueue = new ArrayBlockingQueue<ContentValues>(MAX_QUEUE_SIZE);
 
         PowerManager pm = (PowerManager)
             mSystemSens.getSystemService(Context.POWER_SERVICE);
 
+        // Held once for every flush request that is in the queue
         mWL = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                 TAG);
-        mWL.setReferenceCounted(false);
+        mWL.setReferenceCounted(true);
 
         mSDF = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        mExpandSDF = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", 
+                Locale.US);
+
+        mHeaders = new HashMap<Integer, String[]>();
+        mTypeIds = new HashMap<String, Integer>();
+        mTypeNames = new HashMap<Integer, String>();
+        mTypeEvictions = new ConcurrentHashMap<String, Integer>();
+        mDecoded = new RecordCodec.Record();
+        mPartitions = new ArrayList<Partition>();
 
 
         mDbBirthDate = 0L;
 
+        mWriter = new WriterThread();
+        mWriter.start();
+
     }
 
     /**
@@ -149,69 +334,251 @@ public class SystemSensDbAdaptor
      * If it cannot be opened, try to create a new instance of the
      * database. If it cannot be created, throw an exception to signal
      * the failure.
+     * The connection is shared with the writer thread and stays open
+     * until shutdown() is called.
      * 
      * @return this         (self reference, allowing this to be
      *                      chained in an initialization call)
      * @throws SQLException if the database could be neither opened or
      *                      created
      */
-    public synchronized SystemSensDbAdaptor open() throws SQLException 
+    public SystemSensDbAdaptor open() throws SQLException 
+    {
+        getDb();
+        return this;
+    }
+    
+    /**
+      * Releases the database.
+      * The connection is kept open for the writer thread. It is only
+      * closed by shutdown().
+      */
+    public void close() 
+    {
+    }
+
+
+    /**
+      * Writes all the pending records, stops the writer thread and
+      * closes the database. The adaptor should not be used after this
+      * call.
+      */
+    public void shutdown()
+    {
+        try
+        {
+            mQueue.put(STOP_MARKER);
+            mWriter.join();
+        }
+        catch (InterruptedException ie)
+        {
+            Log.e(TAG, "Interrupted while stopping the writer", ie);
+        }
+    }
+
+
+    /**
+     * Returns the shared database connection, opening it if needed.
+     *
+     * @return              open database
+     * @throws SQLException if the database could not be opened
+     */
+    private synchronized SQLiteDatabase getDb() throws SQLException
     {
-        if (!mFlushLock)
+        if ((mDb == null) || (!mDb.isOpen()))
         {
             mDbHelper = new DatabaseHelper(mSystemSens);
             mDb = mDbHelper.getWritableDatabase();
+            loadPartitions();
         }
-        mOpenLock = true;
-        return this;
+        return mDb;
     }
-    
+
+
     /**
-      * Closes the database.
-      */
-    public synchronized void close() 
+     * Reads the partition catalog and makes sure there is an active
+     * partition.
+     */
+    private synchronized void loadPartitions()
     {
-        if (!mFlushLock)
+        mPartitions.clear();
+        mNextId = 1;
+
+        Cursor c = mDb.query(PARTITIONS_TABLE, new String[] {KEY_DAY,
+                KEY_MINID, KEY_MAXID, KEY_MINTIME, KEY_MAXTIME}, 
+                null, null, null, null, KEY_DAY);
+
+        while (c.moveToNext())
         {
-            mDb.close();
-            mDbHelper.close();
+            Partition p = new Partition(c.getLong(0));
+            p.minId = c.getLong(1);
+            p.maxId = c.getLong(2);
+            p.minTime = c.getLong(3);
+            p.maxTime = c.getLong(4);
+            mPartitions.add(p);
+
+            if (p.maxId >= mNextId)
+                mNextId = p.maxId + 1;
         }
-        mOpenLock = false;
+        c.close();
+
+        if (mPartitions.isEmpty())
+            createPartition(System.currentTimeMillis() / ONE_DAY);
     }
 
 
     /**
-      * Cause the database adaptor to drop the table and clreate it
-      * again. This hack is necessary to prevent the index values from
-      * getting too large. When the DB is created the index starts
-      * from 0.
-      * This method assumes that the database has been opened.
-      */
-    public synchronized void tickle()
+     * Creates the partition of the given day and makes it the active
+     * partition.
+     */
+    private synchronized Partition createPartition(long day)
     {
+        Partition p = new Partition(day);
+        p.minId = mNextId;
+        p.maxId = mNextId - 1;
+        p.minTime = Long.MAX_VALUE;
+        p.maxTime = Long.MIN_VALUE;
 
-        if (!mOpenLock)
-            return;
+        mDb.beginTransaction();
+        try
+        {
+            mDb.execSQL(String.format(PARTITION_CREATE, p.table));
+            mDb.execSQL(String.format(PARTITION_TYPE_INDEX, p.table));
+            mDb.execSQL(String.format(PARTITION_TIME_INDEX, p.table));
+
+            ContentValues values = new ContentValues();
+            values.put(KEY_DAY, p.day);
+            values.put(KEY_MINID, p.minId);
+            values.put(KEY_MAXID, p.maxId);
+            values.put(KEY_MINTIME, p.minTime);
+            values.put(KEY_MAXTIME, p.maxTime);
+            mDb.insert(PARTITIONS_TABLE, null, values);
+
+            mDb.setTransactionSuccessful();
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+
+        Log.i(TAG, "Created partition " + p.table);
+        mPartitions.add(p);
+        return p;
+    }
+
+
+    /**
+     * Drops a partition and its catalog row.
+     */
+    private synchronized void dropPartition(Partition p)
+    {
+        mDb.beginTransaction();
+        try
+        {
+            mDb.execSQL(String.format(PARTITION_DROP, p.table));
+            mDb.delete(PARTITIONS_TABLE, KEY_DAY + "=" + p.day, null);
+            mDb.setTransactionSuccessful();
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+
+        Log.i(TAG, "Dropped partition " + p.table);
+        mPartitions.remove(p);
+    }
+
+
+    /**
+     * Writes the id and time bounds of a partition to the catalog.
+     */
+    private void updatePartition(Partition p)
+    {
+        ContentValues values = new ContentValues();
+        values.put(KEY_MINID, p.minId);
+        values.put(KEY_MAXID, p.maxId);
+        values.put(KEY_MINTIME, p.minTime);
+        values.put(KEY_MAXTIME, p.maxTime);
+        mDb.update(PARTITIONS_TABLE, values, KEY_DAY + "=" + p.day, null);
+    }
+
+
+    private Partition activePartition()
+    {
+        return mPartitions.get(mPartitions.size() - 1);
+    }
 
 
+    /**
+     * Returns the partition a record of the given time is written to.
+     * A new partition is started when a record of a later day
+     * arrives. Records never go back to an older partition, so row
+     * ids keep growing across partitions even if the clock is set
+     * back.
+     */
+    private synchronized Partition partitionFor(long time)
+    {
+        Partition active = activePartition();
+        long day = time / ONE_DAY;
+
+        if (day > active.day)
+            return createPartition(day);
+
+        return active;
+    }
+
+
+    /**
+     * Returns the partition that holds the given row id, or null.
+     */
+    private synchronized Partition partitionOf(long rowId)
+    {
+        for (Partition p : mPartitions)
+            if ((rowId >= p.minId) && (rowId <= p.maxId))
+                return p;
+
+        return null;
+    }
+
+
+    /**
+      * Cause the database adaptor to drop the partitions and create
+      * a new one. This hack is necessary to prevent the index values
+      * from getting too large. Once the database is empty the row ids
+      * start from 1 again.
+      * The check and the drop hold the adaptor lock, which the writer
+      * also holds while it commits, so no records can be lost.
+      */
+    public synchronized void tickle()
+    {
+        getDb();
+
         long curTime = Calendar.getInstance().getTimeInMillis();
         
         if (curTime - mDbBirthDate < MIN_TICKLE_INTERVAL)
             return;
 
-
-        SQLiteStatement countQuery = mDb.compileStatement(
-                "SELECT COUNT (*) FROM " + DATABASE_TABLE + ";");
-
-        long count = countQuery.simpleQueryForLong();
+        long count = 0;
+        for (Partition p : mPartitions)
+        {
+            SQLiteStatement countQuery = mDb.compileStatement(
+                    "SELECT COUNT (*) FROM " + p.table + ";");
+            count += countQuery.simpleQueryForLong();
+            countQuery.close();
+        }
 
         if (count == 0)
         {
-            Log.i(TAG, "Dropping the table.");
-            mDb.execSQL(DATABASE_DROP);
+            Log.i(TAG, "Dropping the partitions.");
+            ArrayList<Partition> partitions 
+                = new ArrayList<Partition>(mPartitions);
+            for (Partition p : partitions)
+                dropPartition(p);
+
+            mNextId = 1;
 
-            Log.i(TAG, "Creating a new table.");
-            mDb.execSQL(DATABASE_CREATE);
+            Log.i(TAG, "Creating a new partition.");
+            createPartition(curTime / ONE_DAY);
 
             mDbBirthDate = curTime;
         }
@@ -220,113 +587,771 @@ public class SystemSensDbAdaptor
 
     /**
      * Create a new entry using the datarecord provided. 
-     * If the entry is successfully created returns the new rowId for
-     * that entry, otherwise returns a -1 to indicate failure.
+     * The record is handed to the writer thread, which stores it in
+     * the compact format of RecordCodec. If the write queue is full
+     * the caller waits up to ENQUEUE_TIMEOUT for the writer to make
+     * room; the record is only dropped if the writer is stuck.
      * 
-     * @param datarecord        datarecord for the entry
+     * @param data              data of the record
+     * @param type              type of the record
+     * @return                  false if the record was dropped
+     */
+    public boolean createEntry(JSONObject data, String type) 
+    {
+        long time = System.currentTimeMillis();
+        String payload = data.toString();
+
+        ContentValues initialValues = new ContentValues();
+        initialValues.put(KEY_TIME, time);
+        initialValues.put(KEY_TYPE, type);
+        initialValues.put(KEY_DATARECORD, payload);
+
+        boolean queued;
+        try
+        {
+            queued = mQueue.offer(initialValues, ENQUEUE_TIMEOUT, 
+                    TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+
+        if (!queued)
+            Log.e(TAG, "Write queue is full. Dropped a " + type 
+                    + " record.");
+
+        if (mSystemSens.hasContextReceivers())
+        {
+            String dateStr;
+            synchronized (mSDF)
+            {
+                dateStr = mSDF.format(new Date(time));
+            }
+
+            mSystemSens.broadcast(RecordCodec.toJson(dateStr, time,
+                        SystemSens.IMEI, type, SystemSens.VER, payload));
+        }
+
+        return queued;
+    }
+
+
+    /**
+     * Expands a record stored in the compact format to the JSON
+     * string of the full record.
+     *
+     * @param   time        recordtime column of the record
+     * @param   typeId      recordtype column of the record
+     * @param   blob        datarecord column of the record
+     * @return              JSON string of the record, or null if the
+     *                      record could not be decoded
+     */
+    public synchronized String expandRecord(long time, int typeId, 
+            byte[] blob)
+    {
+        if (!RecordCodec.decode(blob, mDecoded))
+        {
+            Log.e(TAG, "Could not decode record");
+            return null;
+        }
+
+        String[] header = getHeader(mDecoded.headerId);
+        String type = getTypeName(typeId);
+
+        return RecordCodec.toJson(mExpandSDF.format(new Date(time)),
+                time, header[0], type, header[1], mDecoded.payload);
+    }
+
+
+    /**
+     * Returns the id of the header row of this device and version,
+     * inserting it if needed.
+     */
+    private synchronized int getHeaderId()
+    {
+        if (mHeaderId != -1)
+            return mHeaderId;
+
+        String user = SystemSens.IMEI;
+        String ver = SystemSens.VER;
+
+        loadHeaders();
+        for (Integer id : mHeaders.keySet())
+        {
+            String[] header = mHeaders.get(id);
+            if (equal(user, header[0]) && equal(ver, header[1]))
+            {
+                mHeaderId = id;
+                return mHeaderId;
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_USER, user);
+        values.put(KEY_VER, ver);
+        mHeaderId = (int) getDb().insert(HEADER_TABLE, null, values);
+        mHeaders.put(mHeaderId, new String[] {user, ver});
+
+        return mHeaderId;
+    }
+
+    /**
+     * Returns the (user, version) pair of the given header id.
+     */
+    private synchronized String[] getHeader(int headerId)
+    {
+        if (!mHeaders.containsKey(headerId))
+            loadHeaders();
+
+        String[] header = mHeaders.get(headerId);
+        if (header == null)
+            return new String[] {null, null};
+
+        return header;
+    }
+
+    private synchronized void loadHeaders()
+    {
+        Cursor c = getDb().query(HEADER_TABLE, new String[] {KEY_ROWID,
+                KEY_USER, KEY_VER}, null, null, null, null, null);
+
+        while (c.moveToNext())
+            mHeaders.put(c.getInt(0), new String[] {c.getString(1),
+                    c.getString(2)});
+
+        c.close();
+    }
+
+    /**
+     * Returns the id of the given type name, inserting it if needed.
+     */
+    private synchronized int getTypeId(String type)
+    {
+        Integer id = mTypeIds.get(type);
+        if (id != null)
+            return id;
+
+        loadTypes();
+        id = mTypeIds.get(type);
+        if (id != null)
+            return id;
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, type);
+        int newId = (int) getDb().insert(TYPES_TABLE, null, values);
+
+        mTypeIds.put(type, newId);
+        mTypeNames.put(newId, type);
+
+        return newId;
+    }
+
+    /**
+     * Returns the name of the given type id.
+     */
+    private synchronized String getTypeName(int typeId)
+    {
+        String name = mTypeNames.get(typeId);
+        if (name != null)
+            return name;
+
+        loadTypes();
+        name = mTypeNames.get(typeId);
+        if (name == null)
+            name = "unknown";
+
+        return name;
+    }
+
+    private synchronized void loadTypes()
+    {
+        Cursor c = getDb().query(TYPES_TABLE, new String[] {KEY_ROWID,
+                KEY_NAME}, null, null, null, null, null);
+
+        while (c.moveToNext())
+        {
+            mTypeIds.put(c.getString(1), c.getInt(0));
+            mTypeNames.put(c.getInt(0), c.getString(1));
+        }
+
+        c.close();
+    }
+
+    private static boolean equal(String a, String b)
+    {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+
+    /**
+     * Sets the limits on the records kept in the database. The limits
+     * are enforced by the writer thread after each commit.
+     *
+     * @param   policy      retention policy, or null for no limits
+     */
+    public void setRetentionPolicy(RetentionPolicy policy)
+    {
+        mRetention = policy;
+    }
+
+
+    /**
+     * Returns how many times records of the given type may have been
+     * evicted. DeltaFilter stores a keyframe once the count changes,
+     * since the last keyframe of the type may be gone.
+     *
+     * @param   type        record type
+     * @return              number of evictions
+     */
+    public int getEvictionCount(String type)
+    {
+        Integer count = mTypeEvictions.get(type);
+        return mEvictions + ((count == null) ? 0 : count);
+    }
+
+
+    /**
+     * Returns the number of bytes used by the database, not counting
+     * free pages. Space left by evicted records in pages that are
+     * still in use is counted.
+     *
+     * @return              size of the database in bytes
      */
-    public synchronized void createEntry(JSONObject data, String type) 
+    public synchronized long getDbSize()
     {
+        SQLiteDatabase db = getDb();
 
-        JSONObject dataRecord = new JSONObject();
+        SQLiteStatement pages = db.compileStatement(
+                "PRAGMA page_count;");
+        SQLiteStatement free = db.compileStatement(
+                "PRAGMA freelist_count;");
 
-        // First thing, get the current time
-        Calendar cal = Calendar.getInstance();
+        long used = pages.simpleQueryForLong() 
+            - free.simpleQueryForLong();
 
-        String timeStr = mSDF.format(cal.getTime());
+        pages.close();
+        free.close();
 
+        return used * db.getPageSize();
+    }
 
 
+    /**
+     * Returns the bytes held by the stored records: the size of the
+     * database less the records that were evicted from partitions
+     * that have not been dropped yet.
+     */
+    private synchronized long getStoredSize()
+    {
+        long size = getDbSize();
+
+        for (Partition p : mPartitions)
+            size -= p.evictedBytes;
+
+        return size;
+    }
+
+
+    /**
+     * Applies the retention policy. Called by the writer thread after
+     * each commit. Partitions past the maximum age are dropped. 
+     * The size of the database is checked at most once every
+     * SIZE_CHECK_INTERVAL. If it is too large, at most EVICTION_CHUNK
+     * records are evicted after each commit, so that the writer is
+     * never held up for long, until the excess has been evicted.
+     */
+    private void enforceRetention()
+    {
+        RetentionPolicy policy = mRetention;
+        if (policy == null)
+            return;
+
         try
         {
-            dataRecord.put("date", timeStr);
-            dataRecord.put("time_stamp", cal.getTimeInMillis());
-            dataRecord.put("user", IMEI);
-            dataRecord.put("type", type);
-            dataRecord.put("ver", VER);
-            dataRecord.put("data", data);
+            if (policy.getMaxAge() != RetentionPolicy.UNLIMITED)
+                dropOlderThan(System.currentTimeMillis() 
+                        - policy.getMaxAge());
+
+            if (policy.getMaxBytes() == RetentionPolicy.UNLIMITED)
+                return;
+
+            long now = SystemClock.elapsedRealtime();
+            if (now >= mNextSizeCheck)
+            {
+                mNextSizeCheck = now + SIZE_CHECK_INTERVAL;
+                mExcessBytes = getStoredSize() - policy.getMaxBytes();
+            }
+
+            if (mExcessBytes > 0)
+            {
+                long evicted = evict(policy);
+                mExcessBytes = (evicted > 0) ? mExcessBytes - evicted : 0;
+            }
         }
-        catch (JSONException e)
+        catch (SQLException se)
         {
-            Log.e(TAG, "Exception", e);
+            Log.e(TAG, "Exception applying retention policy", se);
         }
+    }
 
 
-        String recordStr = dataRecord.toString();
+    /**
+     * Drops the partitions whose records are all older than the
+     * given time, and the ones that have no records left. 
+     */
+    private synchronized void dropOlderThan(long cutoff)
+    {
+        ArrayList<Partition> partitions 
+            = new ArrayList<Partition>(mPartitions);
 
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_TIME, timeStr);
-        initialValues.put(KEY_TYPE, type);
-        initialValues.put(KEY_DATARECORD, recordStr );
+        for (Partition p : partitions)
+        {
+            if ((p != activePartition()) 
+                    && (p.isEmpty() || (p.maxTime < cutoff)))
+            {
+                Log.i(TAG, "Dropping old partition " + p.table);
+                dropPartition(p);
+                mEvictions++;
+            }
+        }
+    }
 
-        mBuffer.add(initialValues);
 
-        if (mSystemSens.hasContextReceivers())
-            mSystemSens.broadcast(recordStr);
+    /**
+     * Evicts the oldest chunk of records of the first type in the
+     * eviction order that still has records. If none of the listed
+     * types are left, the oldest records of any type are evicted.
+     *
+     * @return              bytes of the evicted records, 0 if there
+     *                      were none left
+     */
+    private synchronized long evict(RetentionPolicy policy)
+    {
+        if (mTypeIds.isEmpty())
+            loadTypes();
+
+        for (String type : policy.getEvictionOrder())
+        {
+            Integer typeId = mTypeIds.get(type);
+            if (typeId == null)
+                continue;
 
-        //android.util.Log.i(TAG, dataRecord.toString());
+            long bytes = evictChunk(KEY_TYPE + " = " + typeId);
+            if (bytes > 0)
+            {
+                Integer count = mTypeEvictions.get(type);
+                mTypeEvictions.put(type, (count == null) ? 1 : count + 1);
+
+                Log.i(TAG, "Evicted " + bytes + " bytes of " + type 
+                        + " records.");
+                return bytes;
+            }
+        }
 
+        long bytes = evictChunk(null);
+        if (bytes > 0)
+            mEvictions++;
+        Log.i(TAG, "Evicted " + bytes + " bytes of records.");
+        return bytes;
     }
 
 
-    public synchronized void flushDb()
+    /**
+     * Deletes up to EVICTION_CHUNK of the oldest records that match
+     * the selection, from the oldest partition that has any. The
+     * bounds of the partition are updated, and it is dropped if it is
+     * not the active one and has no records left.
+     *
+     * @param   where       selection, or null for all records
+     * @return              bytes of the deleted records
+     */
+    private long evictChunk(String where)
     {
-       tempBuffer = mBuffer;
-       mBuffer = new HashSet<ContentValues>(); 
+        ArrayList<Partition> partitions 
+            = new ArrayList<Partition>(mPartitions);
 
-        Thread flushThread = new Thread()
+        for (Partition p : partitions)
         {
-            public void run()
+            if (p.isEmpty())
+                continue;
+
+            String chunk = KEY_ROWID + " IN (SELECT "
+                    + KEY_ROWID + " FROM " + p.table
+                    + ((where == null) ? "" : " WHERE " + where)
+                    + " ORDER BY " + KEY_TIME 
+                    + " LIMIT " + EVICTION_CHUNK + ")";
+
+            long bytes = 0;
+            int count = 0;
+
+            mDb.beginTransaction();
+            try
+            {
+                Cursor c = mDb.rawQuery("SELECT COUNT(*), TOTAL(LENGTH("
+                        + KEY_DATARECORD + ")) FROM " + p.table 
+                        + " WHERE " + chunk, null);
+                if (c.moveToFirst())
+                    bytes = c.getLong(1) + c.getLong(0) * ROW_OVERHEAD;
+                c.close();
+
+                count = mDb.delete(p.table, chunk, null);
+                if (count > 0)
+                    updateBounds(p);
+
+                mDb.setTransactionSuccessful();
+            }
+            finally
             {
-                mWL.acquire();
+                mDb.endTransaction();
+            }
 
-                if (!mOpenLock)
-                {
-                    try
-                    {
-                        mDbHelper = new DatabaseHelper(mSystemSens);
-                        mDb = mDbHelper.getWritableDatabase();
-                    }
-                    catch (SQLException se)
-                    {
-                        Log.e(TAG, "Could not open DB helper", se);
-
-                    }
-                }
-                mFlushLock = true;
+            if (count == 0)
+                continue;
+
+            if (p.isEmpty() && (p != activePartition()))
+                dropPartition(p);
+            else
+                p.evictedBytes += bytes;
+
+            return bytes;
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * Reads the id and time bounds of a partition from its records
+     * after some of them were deleted, and writes them to the
+     * catalog. Both come from the primary key and the time index.
+     */
+    private void updateBounds(Partition p)
+    {
+        Cursor c = mDb.rawQuery("SELECT MIN(" + KEY_ROWID + "), MAX("
+                + KEY_ROWID + "), MIN(" + KEY_TIME + "), MAX(" + KEY_TIME
+                + ") FROM " + p.table, null);
+
+        try
+        {
+            if (c.moveToFirst() && !c.isNull(0))
+            {
+                p.minId = c.getLong(0);
+                p.maxId = c.getLong(1);
+                p.minTime = c.getLong(2);
+                p.maxTime = c.getLong(3);
+            }
+            else
+            {
+                // Keep maxId, so the row ids keep growing
+                p.minId = p.maxId + 1;
+                p.minTime = Long.MAX_VALUE;
+                p.maxTime = Long.MIN_VALUE;
+            }
+        }
+        finally
+        {
+            c.close();
+        }
+
+        updatePartition(p);
+    }
+
+
+    /**
+     * Asks the writer thread to commit all the records created so
+     * far. Returns immediately; a wake lock is held until the writer
+     * has committed them.
+     */
+    public void flushDb()
+    {
+        synchronized (mQueue)
+        {
+            if (mStopped)
+                return;
+
+            mWL.acquire();
+
+            if (!mQueue.offer(FLUSH_MARKER))
+            {
+                // The writer commits on its own once enough records
+                // are waiting.
+                Log.e(TAG, "Write queue is full. Flush request dropped.");
+                mWL.release();
+            }
+        }
+    }
 
 
-                Log.i(TAG, "Flushing " 
-                        + tempBuffer.size() + " records.");
+    /**
+     * The single writer of the database. 
+     * It drains the write queue into a batch and commits the batch
+     * when a flush is requested or the batch grows too large. After
+     * a failed commit the batch is only retried on a flush, and at
+     * most MAX_RETAINED records are kept for it.
+     */
+    private class WriterThread extends Thread
+    {
+        WriterThread()
+        {
+            super(TAG);
+        }
+
+        public void run()
+        {
+            ArrayList<ContentValues> batch = 
+                new ArrayList<ContentValues>();
+            ContentValues value;
+            boolean failed = false;
 
+            while (true)
+            {
                 try
                 {
-                    for (ContentValues value : tempBuffer)
-                    {
-                        mDb.insert(DATABASE_TABLE, null, value);
-                    }
+                    value = mQueue.take();
+                }
+                catch (InterruptedException ie)
+                {
+                    Log.e(TAG, "Writer interrupted", ie);
+                    break;
+                }
+
+                if ((value == FLUSH_MARKER) || (value == STOP_MARKER))
+                {
+                    failed = !writeBatch(batch);
+
+                    if (value == FLUSH_MARKER)
+                        mWL.release();
+                    else
+                        break;
                 }
-                catch (IllegalStateException ilse)
+                else
                 {
-                    Log.e(TAG, "Exception inserting. Trying later.",
-                            ilse);
-                    mBuffer = tempBuffer;
+                    batch.add(value);
+
+                    if (!failed && (batch.size() >= MAX_BATCH_SIZE))
+                        failed = !writeBatch(batch);
+                    else if (batch.size() > MAX_RETAINED)
+                        dropOldest(batch);
                 }
+            }
 
+            // Release the wake lock of the flush requests that are
+            // still queued; later requests are ignored
+            synchronized (mQueue)
+            {
+                mStopped = true;
 
-                if (!mOpenLock)
+                while ((value = mQueue.poll()) != null)
+                    if (value == FLUSH_MARKER)
+                        mWL.release();
+            }
+
+            synchronized (SystemSensDbAdaptor.this)
+            {
+                if (mDb != null)
                 {
                     mDb.close();
                     mDbHelper.close();
+                    mDb = null;
                 }
+            }
+        }
 
-                mFlushLock = false;
-                mWL.release();
+        /**
+         * Commits the batch and clears it. If the write fails the
+         * records are kept and retried with the next flush.
+         *
+         * @return          false if the write failed
+         */
+        private boolean writeBatch(ArrayList<ContentValues> batch)
+        {
+            if (batch.size() == 0)
+                return true;
+
+            Log.i(TAG, "Flushing " + batch.size() + " records.");
+
+            try
+            {
+                insertBatch(batch);
+                batch.clear();
+
+                enforceRetention();
+                return true;
             }
-        };
+            catch (IllegalStateException ilse)
+            {
+                Log.e(TAG, "Exception inserting. Trying later.",
+                        ilse);
+            }
+            catch (SQLException se)
+            {
+                Log.e(TAG, "Exception inserting. Trying later.",
+                        se);
+            }
+
+            if (batch.size() > MAX_RETAINED)
+                dropOldest(batch);
+
+            return false;
+        }
+
+        /**
+         * Drops the oldest records of a batch that could not be
+         * committed, so that it stays within MAX_RETAINED. A batch
+         * worth of room is made, so the drops are logged once per
+         * batch rather than once per record.
+         */
+        private void dropOldest(ArrayList<ContentValues> batch)
+        {
+            int excess = batch.size() - (MAX_RETAINED - MAX_BATCH_SIZE);
+
+            batch.subList(0, excess).clear();
+            mEvictions++;
+            Log.e(TAG, "Database is not writable. Dropped " + excess 
+                    + " records.");
+        }
+    }
+
+    /**
+     * Writes all the given records to the database in a single
+     * transaction using pre-compiled insert statements. Either all
+     * the records are written or none of them are.
+     * Each record goes to the partition of its day and gets the next
+     * row id.
+     *
+     * @param   values      records to write
+     * @return              number of rows written
+     */
+    private synchronized int insertBatch(Collection<ContentValues> values)
+    {
+        long start = SystemClock.elapsedRealtime();
+        int count = 0;
+
+        SQLiteDatabase db = getDb();
+
+        // Resolve the dictionary ids and the partitions before the
+        // transaction starts, so that a rolled back batch cannot
+        // leave stale entries in the caches
+        int headerId = getHeaderId();
+        int size = values.size();
+        int[] typeIds = new int[size];
+        long[] times = new long[size];
+        Partition[] targets = new Partition[size];
+        int index = 0;
+        for (ContentValues value : values)
+        {
+            typeIds[index] = getTypeId(value.getAsString(KEY_TYPE));
+            times[index] = value.getAsLong(KEY_TIME);
+            targets[index] = partitionFor(times[index]);
+            index++;
+        }
+
+        // New bounds of the partitions, applied after the commit
+        ArrayList<Partition> touched = new ArrayList<Partition>();
+        ArrayList<long[]> bounds = new ArrayList<long[]>();
+        long[] bound = null;
+
+        long nextId = mNextId;
+        Partition current = null;
+        SQLiteStatement insert = null;
+
+        db.beginTransaction();
+        try
+        {
+            for (ContentValues value : values)
+            {
+                if (targets[count] != current)
+                {
+                    if (insert != null)
+                        insert.close();
+
+                    current = targets[count];
+                    insert = db.compileStatement(String.format(
+                                PARTITION_INSERT, current.table));
+
+                    bound = new long[] {current.maxId, current.minTime,
+                        current.maxTime, 
+                        current.isEmpty() ? nextId : current.minId};
+                    touched.add(current);
+                    bounds.add(bound);
+                }
+
+                insert.bindLong(1, nextId);
+                insert.bindLong(2, times[count]);
+                insert.bindLong(3, typeIds[count]);
+                insert.bindBlob(4, RecordCodec.encode(headerId, 
+                            value.getAsString(KEY_DATARECORD)));
+                insert.executeInsert();
+
+                bound[0] = nextId;
+                bound[1] = Math.min(bound[1], times[count]);
+                bound[2] = Math.max(bound[2], times[count]);
 
-        flushThread.start();
+                nextId++;
+                count++;
+            }
+
+            for (index = 0; index < touched.size(); index++)
+            {
+                Partition p = touched.get(index);
+                ContentValues update = new ContentValues();
+                update.put(KEY_MAXID, bounds.get(index)[0]);
+                update.put(KEY_MINTIME, bounds.get(index)[1]);
+                update.put(KEY_MAXTIME, bounds.get(index)[2]);
+                update.put(KEY_MINID, bounds.get(index)[3]);
+                db.update(PARTITIONS_TABLE, update, 
+                        KEY_DAY + "=" + p.day, null);
+            }
+
+            db.setTransactionSuccessful();
+        }
+        finally
+        {
+            db.endTransaction();
+            if (insert != null)
+                insert.close();
+        }
+
+        // Only reached if the transaction committed
+        for (index = 0; index < touched.size(); index++)
+        {
+            Partition p = touched.get(index);
+            p.maxId = bounds.get(index)[0];
+            p.minTime = bounds.get(index)[1];
+            p.maxTime = bounds.get(index)[2];
+            p.minId = bounds.get(index)[3];
+        }
+        mNextId = nextId;
+
+        mLastFlushCount = count;
+        mLastFlushTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Flushed " + mLastFlushCount + " records in "
+                + mLastFlushTime + " ms.");
+
+        return count;
+    }
 
+    /**
+     * Returns the number of records written by the last flush.
+     *
+     * @return              number of rows written by the last flush
+     */
+    public int getLastFlushCount()
+    {
+        return mLastFlushCount;
+    }
+
+    /**
+     * Returns the time it took to write the last flush.
+     *
+     * @return              duration of the last flush in milliseconds
+     */
+    public long getLastFlushTime()
+    {
+        return mLastFlushTime;
     }
 
     /**
@@ -337,13 +1362,20 @@ public class SystemSensDbAdaptor
      */
     public synchronized boolean deleteEntry(long rowId) 
     {
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID 
+        getDb();
+        Partition p = partitionOf(rowId);
+        if (p == null)
+            return false;
+
+        return mDb.delete(p.table, KEY_ROWID 
                 + "=" + rowId, null) > 0;
     }
 
 
     /**
      * Deletes the entries in a range.
+     * Partitions that fall inside the range are dropped as a whole,
+     * other than the active partition, which is still written to.
      * 
      * @param fromId         id of first datarecord to delete
      * @param toId           id of last datarecord to delete
@@ -351,27 +1383,140 @@ public class SystemSensDbAdaptor
      */
     public synchronized boolean deleteRange(long fromId, long toId) 
     {
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID 
-                + " BETWEEN " 
-                + fromId
-                + " AND " 
-                + toId, null) > 0;
+        getDb();
+        boolean deleted = false;
+
+        ArrayList<Partition> partitions 
+            = new ArrayList<Partition>(mPartitions);
+
+        for (Partition p : partitions)
+        {
+            if (p.isEmpty() || (p.maxId < fromId) || (p.minId > toId))
+                continue;
+
+            if ((fromId <= p.minId) && (toId >= p.maxId) 
+                    && (p != activePartition()))
+            {
+                dropPartition(p);
+                deleted = true;
+                continue;
+            }
+
+            deleted |= mDb.delete(p.table, KEY_ROWID 
+                    + " BETWEEN " 
+                    + fromId
+                    + " AND " 
+                    + toId, null) > 0;
+
+            if (fromId <= p.minId)
+            {
+                p.minId = Math.min(toId, p.maxId) + 1;
+                updatePartition(p);
+            }
+        }
+
+        return deleted;
     }
 
 
     /**
-     * Returns a Cursor over the list of all datarecords in the database
+     * Returns a Cursor over the list of all datarecords in the
+     * database, in row id order.
      * 
      * @return              Cursor over all notes
      */
-    public Cursor fetchAllEntries() 
+    public synchronized Cursor fetchAllEntries() 
     {
+        getDb();
+        return queryPartitions(mPartitions, null, null);
+    }
 
-        return mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID,
-                KEY_TIME, KEY_TYPE, KEY_DATARECORD}, 
-                null, null, null, null, null);
+
+    /**
+     * Returns a Cursor over at most limit datarecords whose row id is
+     * larger than afterId, in row id order. Callers page through the
+     * table by passing the last row id they have seen, so the size
+     * of a cursor does not depend on the size of the table.
+     * A page never spans two partitions, so it may hold fewer than
+     * limit records even if more follow.
+     * 
+     * @param  afterId      row id after which the page starts
+     * @param  limit        maximum number of records in the page
+     * @return              Cursor over the page, empty if there are
+     *                      no more records
+     */
+    public synchronized Cursor fetchEntries(long afterId, int limit) 
+    {
+        getDb();
+        String[] args = new String[] {String.valueOf(afterId)};
+        Cursor c = null;
+
+        for (Partition p : mPartitions)
+        {
+            if (p.isEmpty() || (p.maxId <= afterId))
+                continue;
+
+            if (c != null)
+                c.close();
+
+            c = mDb.query(p.table, RECORD_COLUMNS, 
+                    KEY_ROWID + " > ?", args, 
+                    null, null, KEY_ROWID, String.valueOf(limit));
+
+            if (c.getCount() > 0)
+                return c;
+        }
+
+        if (c == null)
+            c = mDb.query(activePartition().table, RECORD_COLUMNS,
+                    KEY_ROWID + " > ?", args, 
+                    null, null, KEY_ROWID, String.valueOf(limit));
+
+        return c;
+    }
+
+
+    /**
+     * Returns a Cursor over the datarecords recorded in the given
+     * time range, in row id order. Only the partitions that overlap
+     * the range are read, and the type and time indexes of each
+     * partition are used.
+     * 
+     * @param  type         type of the records, or null for all types
+     * @param  fromTime     epoch time of the start of the range
+     * @param  toTime       epoch time of the end of the range
+     * @return              Cursor over the matching records
+     */
+    public synchronized Cursor fetchEntries(String type, long fromTime,
+            long toTime) 
+    {
+        getDb();
+
+        ArrayList<Partition> partitions = new ArrayList<Partition>();
+        for (Partition p : mPartitions)
+            if ((p.maxTime >= fromTime) && (p.minTime <= toTime))
+                partitions.add(p);
+
+        String where = KEY_TIME + " BETWEEN ? AND ?";
+        ArrayList<String> args = new ArrayList<String>();
+        args.add(String.valueOf(fromTime));
+        args.add(String.valueOf(toTime));
+
+        if (type != null)
+        {
+            if (mTypeIds.isEmpty())
+                loadTypes();
+
+            Integer typeId = mTypeIds.get(type);
+            where = KEY_TYPE + " = ? AND " + where;
+            args.add(0, String.valueOf((typeId == null) ? -1 : typeId));
+        }
+
+        return queryPartitions(partitions, where, 
+                args.toArray(new String[args.size()]));
     }
 
+
     /**
      * Returns a Cursor positioned at the record that matches the
      * given rowId.
@@ -380,11 +1525,14 @@ public class SystemSensDbAdaptor
      * @return              Cursor positioned to matching note, if found
      * @throws SQLException if note could not be found/retrieved
      */
-    public Cursor fetchEntry(long rowId) throws SQLException 
+    public synchronized Cursor fetchEntry(long rowId) throws SQLException 
     {
+        getDb();
+        Partition p = partitionOf(rowId);
+        if (p == null)
+            p = activePartition();
 
-        Cursor mCursor = mDb.query(true, DATABASE_TABLE, new String[]
-                {KEY_ROWID, KEY_TIME, KEY_TYPE, KEY_DATARECORD}, 
+        Cursor mCursor = mDb.query(true, p.table, RECORD_COLUMNS, 
                 KEY_ROWID + "=" + rowId,
                 null, null, null, null, null);
         if (mCursor != null) {
@@ -395,4 +1543,52 @@ public class SystemSensDbAdaptor
     }
 
 
+    /**
+     * Runs the same select on each of the given partitions and
+     * returns the union of the results in row id order.
+     *
+     * @param   partitions  partitions to read
+     * @param   where       selection, or null for all records
+     * @param   whereArgs   arguments of the selection of one
+     *                      partition
+     * @return              Cursor over the result
+     */
+    private Cursor queryPartitions(List<Partition> partitions, 
+            String where, String[] whereArgs)
+    {
+        if (partitions.isEmpty())
+        {
+            partitions = new ArrayList<Partition>();
+            partitions.add(activePartition());
+        }
+
+        StringBuilder sql = new StringBuilder();
+        ArrayList<String> args = new ArrayList<String>();
+
+        for (Partition p : partitions)
+        {
+            if (sql.length() > 0)
+                sql.append(" UNION ALL ");
+
+            sql.append("SELECT ").append(KEY_ROWID).append(", ")
+                .append(KEY_TIME).append(", ")
+                .append(KEY_TYPE).append(", ")
+                .append(KEY_DATARECORD)
+                .append(" FROM ").append(p.table);
+
+            if (where != null)
+            {
+                sql.append(" WHERE ").append(where);
+                for (String arg : whereArgs)
+                    args.add(arg);
+            }
+        }
+
+        sql.append(" ORDER BY ").append(KEY_ROWID).append(";");
+
+        return mDb.rawQuery(sql.toString(), 
+                args.toArray(new String[args.size()]));
+    }
+
+
 }
@@ -20,6 +20,9 @@ import java.lang.Thread;
  * Manages a static WakeLock to gaurantee that the phone
  * does not go to sleep before SystemSens Service is started
  * by the Alarm BroadcastReceiver.
+ * The lock is acquired on the main thread and released by the
+ * pipeline thread once a poll is done, so both methods are
+ * synchronized.
  * 
  *
  * @author      Hossein Falaki
@@ -32,7 +35,8 @@ public class SystemSensWakeLock
     private static PowerManager.WakeLock sCpuWakeLock;
 
 
-    public static void acquireCpuWakeLock(Context context)
+    public static synchronized void acquireCpuWakeLock(
+            Context context)
     {
         Log.i(TAG, "Acquiring cpu wake lock");
 
@@ -51,7 +55,7 @@ public class SystemSensWakeLock
     }
 
 
-    public static void releaseCpuLock()
+    public static synchronized void releaseCpuLock()
     {
         Log.i(TAG, "Releaseing cpu wake lock");
 
@@ -6,28 +6,26 @@
 package edu.ucla.cens.systemsens.util;
 
 import android.database.Cursor;
-import android.database.SQLException;
 
-import java.lang.ProcessBuilder;
-import java.util.HashSet;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.DataOutputStream;
-import java.io.InputStream;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.FilterOutputStream;
+import java.util.Random;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 
 //import android.util.Log;
@@ -41,9 +39,9 @@ import edu.ucla.cens.systemsens.SystemSens;
  * This class implements mechanisms to upload data collected by
  * SystemSens to Sensorbase (or any other repository).
  * It is passed a pointer to a Database Adaptor object upon creation.
- * Each time the upload() method is called a new thread is spawned.
- * The new thread will read all the records in the
- * database and uploaded and then delete them.
+ * tryUpload() runs on the calling thread. It reads the records of the
+ * database in batches, posts them from a small pool of sender threads
+ * and deletes each batch once the server has accepted it.
  *
  * @author  Hossein Falaki
  */
@@ -55,23 +53,60 @@ public class Uploader
     /** Database adaptor object */
     private SystemSensDbAdaptor mDbAdaptor;
 
+    /** Number of records sent in the first request */
+    private static final int INIT_UPLOAD_SIZE = 200;
+
+    /** Smallest number of records sent in one request */
+    private static final int MIN_UPLOAD_SIZE = 25;
+
     /** Maximum number of records that will be read and deleted at a
      * time*/
-    private static final int MAX_UPLOAD_SIZE = 200;
+    private static final int MAX_UPLOAD_SIZE = 2000;
+
+    /** Batch size increase after each fast request */
+    private static final int UPLOAD_SIZE_STEP = 100;
 
-    /** After this number of failiurs upload will abort */
-    private static final int MAX_FAIL_COUNT = 50;
+    /** Requests slower than this shrink the batch size */
+    private static final long TARGET_LATENCY = 10 * 1000;
+
+    /** After this number of consecutive failiurs upload will abort */
+    private static final int MAX_FAIL_COUNT = 8;
+
+    /** Base delay between failed attempts */
+    private static final long BACKOFF_BASE = 1000;
+
+    /** Largest delay between failed attempts */
+    private static final long BACKOFF_MAX = 2 * 60 * 1000;
 
 
     /** Upload location of the SystemSens server */
-    private static final String CUSTOM_URL 
+    public static final String CUSTOM_URL 
         = "https://systemsens.cens.ucla.edu/service/viz/put/";
 
+    /** Maximum number of batches posted concurrently */
+    private static final int MAX_IN_FLIGHT = 3;
+
+    /** Size of the buffers used to stream the request body */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Destination of the uploads */
+    private final String mUploadUrl;
+
+    /** If set the request body is gzip compressed */
+    private final boolean mCompress;
 
-    private static final String IMEI = SystemSens.IMEI;
+    /** Chooses the number of records in each request */
+    private final BatchSizer mBatchSizer = new BatchSizer(
+            INIT_UPLOAD_SIZE, MIN_UPLOAD_SIZE, MAX_UPLOAD_SIZE,
+            UPLOAD_SIZE_STEP, TARGET_LATENCY);
 
+    /** Source of the backoff jitter */
+    private final Random mRandom = new Random();
 
-    private static final String mTableName = "systemsens";
+    /** Statistics of the last successful batch */
+    private int mLastBatchCount;
+    private long mLastBatchBytes;
+    private long mLastBatchLatency;
 
     /**
      * Constructor - creates an uploader object with access to the
@@ -80,129 +115,146 @@ public class Uploader
      * @param   dbAdaptor       database adaptor object
      */
     public Uploader(SystemSensDbAdaptor dbAdaptor)
+    {
+        this(dbAdaptor, CUSTOM_URL, false);
+    }
+
+    /**
+     * Constructor - creates an uploader object that posts to the
+     * given location.
+     *
+     * @param   dbAdaptor       database adaptor object
+     * @param   uploadUrl       location records are posted to
+     * @param   compress        if set, request bodies are sent with
+     *                          gzip Content-Encoding
+     */
+    public Uploader(SystemSensDbAdaptor dbAdaptor, String uploadUrl,
+            boolean compress)
     {
         this.mDbAdaptor = dbAdaptor;
+        this.mUploadUrl = uploadUrl;
+        this.mCompress = compress;
     }
 
 
 
 
 
+    /**
+     * Uploads and deletes all records in the database.
+     *
+     * Batches are read on the calling thread and posted by a small
+     * pool of sender threads, so the next batch is read and expanded
+     * while earlier requests are still in flight. At most
+     * MAX_IN_FLIGHT batches are outstanding at a time. 
+     * Results are consumed in the order the batches were read and a
+     * batch is only deleted after it and all batches before it have
+     * been accepted. 
+     *
+     * When a batch fails, the batches after it are abandoned and its
+     * range is read again at the size the failure left, after a
+     * backoff delay, so a large batch on a flaky link is split
+     * instead of being resent whole. A record may be sent twice but
+     * is never lost.
+     */
     public void tryUpload()
     {
         //TODO: hold a wifi lock
 
         Log.i(TAG, "tryUpload started");
-        Cursor  c = null;
-        boolean postResult = false;
         boolean noError = true;
+        int failCount = 0;
+
+        ExecutorService senders = Executors.newFixedThreadPool(
+                MAX_IN_FLIGHT);
+        LinkedList<UploadBatch> batches = new LinkedList<UploadBatch>();
+        LinkedList<Future<Boolean>> results 
+            = new LinkedList<Future<Boolean>>();
 
         try
         {
             mDbAdaptor.open();
 
+            long lastId = 0;
+            boolean more = true;
 
-            c = mDbAdaptor.fetchAllEntries();
-            int dataIndex = c.getColumnIndex(
-                    SystemSensDbAdaptor.KEY_DATARECORD);
-            int idIndex = c.getColumnIndex(
-                    SystemSensDbAdaptor.KEY_ROWID);
-            int timeIndex = c.getColumnIndex(
-                    SystemSensDbAdaptor.KEY_TIME);
-            int typeIndex = c.getColumnIndex(
-                    SystemSensDbAdaptor.KEY_TYPE);
-
-
-            Integer id, pId;
-            HashSet<Integer> keySet = new HashSet<Integer>();
-            String newRecord, newType, newTime;
-            String line;
-            ArrayList<String> content;
-
-            int failCount = 0;
-            int dbSize =  c.getCount();
-            int readCount = 0;
-
-
-
-            c.moveToFirst();
-
-            while ((dbSize > 0) && SystemSens.isPlugged() && noError)
+            while (noError)
             {
-                
-                Log.i(TAG, "Total DB size is: " + dbSize);
-                int maxCount = (MAX_UPLOAD_SIZE > dbSize) 
-                    ? dbSize : MAX_UPLOAD_SIZE;
-
-                content = new ArrayList<String>();
-                pId = -1;
-
-                for (int i = 0; i < maxCount; i++)
+                // Keep the pipeline full
+                while (more && (batches.size() < MAX_IN_FLIGHT) 
+                        && SystemSens.isPlugged())
                 {
+                    final UploadBatch batch = readBatch(lastId,
+                            mBatchSizer.getSize());
 
-                    id = c.getInt(idIndex);
-                    if ((pId != -1) && (id != (pId + 1)))
+                    if (batch.records.isEmpty())
                     {
-                        Log.i(TAG, "Cursor jumped.");
-                        noError = false;
+                        more = false;
                         break;
                     }
-                    newRecord = c.getString(dataIndex);
 
-                    content.add(URLEncoder.encode(newRecord));
-                    keySet.add(id);
-                    readCount++;
-                    pId = id;
+                    lastId = batch.toId;
 
-                    c.moveToNext();
-                    
+                    batches.add(batch);
+                    results.add(senders.submit(new Callable<Boolean>()
+                    {
+                        public Boolean call()
+                        {
+                            return postBatch(batch);
+                        }
+                    }));
                 }
-                
-                dbSize -= readCount;
 
+                if (batches.isEmpty())
+                    break;
 
-                do
+                // Wait for the oldest batch
+                UploadBatch batch = batches.removeFirst();
+                boolean postResult = results.removeFirst().get();
+
+                if (postResult)
                 {
-                    postResult = doPost("data=" 
-                            + content.toString(), CUSTOM_URL);
-                    if (postResult)
-                    {
-                        failCount = 0;
-                        long fromId = Collections.min(keySet);
-                        long toId = Collections.max(keySet);
-                        Log.i(TAG, "Deleting [" 
-                                + fromId + ", " + toId + "]");
+                    failCount = 0;
 
-                        if( !mDbAdaptor.deleteRange(fromId, toId) )
-                        {
-                            Log.e(TAG, "Error deleting rows");
-                        }
+                    Log.i(TAG, "Deleting [" 
+                            + batch.fromId + ", " + batch.toId + "]");
 
-                    }
-                    else
+                    if( !mDbAdaptor.deleteRange(batch.fromId, 
+                                batch.toId) )
                     {
-                        Log.e(TAG, "Post failed");
-                        failCount++;
+                        Log.e(TAG, "Error deleting rows");
                     }
-                    keySet.clear();
+                    continue;
                 }
-                while ( (!postResult) && (failCount < MAX_FAIL_COUNT));
 
-                if (failCount > MAX_FAIL_COUNT)
+                // Later batches must not be deleted before this one, so
+                // they are dropped and read again after it
+                for (Future<Boolean> result : results)
+                    result.cancel(true);
+                results.clear();
+                batches.clear();
+
+                lastId = batch.afterId;
+                more = true;
+                failCount++;
+
+                if (failCount >= MAX_FAIL_COUNT)
                 {
                     Log.e(TAG, "Too many post failiurs. "
                             + "Will try at another time");
-                    c.close();
-                    mDbAdaptor.close();
-                    return;
+                    noError = false;
+                }
+                else if (!backoff(failCount))
+                {
+                    Log.i(TAG, "Upload interrupted. "
+                            + "Will try at another time");
+                    noError = false;
                 }
-
             }
             
-            c.close();
-            
             // Tickle the DB
-            mDbAdaptor.tickle();
+            if (noError)
+                mDbAdaptor.tickle();
             mDbAdaptor.close();
             
         }
@@ -211,22 +263,193 @@ public class Uploader
             Log.e(TAG, "Exception", e);
             Log.i(TAG, "Will resume upload later");
 
-            if (c != null)
+            mDbAdaptor.close();
+        }
+        finally
+        {
+            // Batches still in flight are not deleted and will be
+            // sent again by the next upload.
+            senders.shutdownNow();
+        }
+
+
+
+    }
+
+
+    /**
+     * Reads the next page of records from the database. Pages are
+     * selected by row id, so memory use does not grow with the
+     * backlog. Row ids are assigned in increasing order, which means
+     * no row outside the page falls inside its id range and
+     * deleteRange removes exactly the records in the page.
+     *
+     * @param   afterId     last row id of the previous page
+     * @param   maxCount    maximum number of records in the batch
+     * @return              batch of records, empty at the end of the
+     *                      table
+     */
+    private UploadBatch readBatch(long afterId, int maxCount)
+    {
+        UploadBatch batch = new UploadBatch(maxCount);
+        batch.afterId = afterId;
+        batch.size = maxCount;
+        Cursor c = mDbAdaptor.fetchEntries(afterId, maxCount);
+
+        try
+        {
+            int idIndex = c.getColumnIndex(
+                    SystemSensDbAdaptor.KEY_ROWID);
+            int timeIndex = c.getColumnIndex(
+                    SystemSensDbAdaptor.KEY_TIME);
+            int typeIndex = c.getColumnIndex(
+                    SystemSensDbAdaptor.KEY_TYPE);
+            int dataIndex = c.getColumnIndex(
+                    SystemSensDbAdaptor.KEY_DATARECORD);
+
+            if (c.moveToFirst())
+                batch.fromId = c.getLong(idIndex);
+
+            while (!c.isAfterLast())
             {
-                c.close();
+                int count = batch.records.size();
+                batch.times[count] = c.getLong(timeIndex);
+                batch.types[count] = c.getInt(typeIndex);
+                batch.records.add(c.getBlob(dataIndex));
+                batch.toId = c.getLong(idIndex);
+                c.moveToNext();
             }
-            mDbAdaptor.close();
+        }
+        finally
+        {
+            c.close();
         }
 
+        return batch;
+    }
 
 
+    /**
+     * Posts a batch once and updates the batch size with the outcome.
+     * Runs on a sender thread; retries are left to tryUpload, which
+     * reads the range again at the new size.
+     *
+     * @param   batch       batch of records
+     * @return              true if the server accepted the batch
+     */
+    private boolean postBatch(UploadBatch batch)
+    {
+        long start = System.currentTimeMillis();
+        boolean postResult = doPost(batch, mUploadUrl);
+        long latency = System.currentTimeMillis() - start;
+
+        if (postResult)
+        {
+            mBatchSizer.onSuccess(batch.records.size(), batch.size, 
+                    latency);
+            logBatch(batch.records.size(), batch.bytes, latency);
+            return true;
+        }
+
+        Log.e(TAG, "Post failed");
+        mBatchSizer.onFailure(batch.size);
+        return false;
     }
 
 
-    private boolean doPost(String content, String dest) 
+    /**
+     * Returns the number of records in the last successful batch.
+     *
+     * @return              number of records
+     */
+    public int getLastBatchCount()
+    {
+        return mLastBatchCount;
+    }
+
+    /**
+     * Returns the number of bytes sent for the last successful batch.
+     * If compression is enabled this is the compressed size.
+     *
+     * @return              number of bytes
+     */
+    public long getLastBatchBytes()
+    {
+        return mLastBatchBytes;
+    }
+
+    /**
+     * Returns the duration of the last successful request.
+     *
+     * @return              latency in milliseconds
+     */
+    public long getLastBatchLatency()
+    {
+        return mLastBatchLatency;
+    }
+
+
+    private synchronized void logBatch(int count, long bytes,
+            long latency)
+    {
+        mLastBatchCount = count;
+        mLastBatchBytes = bytes;
+        mLastBatchLatency = latency;
+
+        double rate = (latency > 0) ? (count * 1000.0 / latency) : 0.0;
+
+        Log.i(TAG, "Uploaded " + count + " records, " + bytes 
+                + " bytes in " + latency + " ms (" 
+                + (long) rate + " records/s). Next batch size: " 
+                + mBatchSizer.getSize());
+    }
+
+
+    /**
+     * Waits before the next attempt after a failure. The delay grows
+     * exponentially with the number of consecutive failures and is
+     * drawn uniformly from [0, delay] so that phones that lost the
+     * server at the same time do not retry in step.
+     *
+     * @param   failCount   number of consecutive failures
+     * @return              false if the upload should be abandoned
+     */
+    private boolean backoff(int failCount)
+    {
+        long delay = BACKOFF_BASE << Math.min(failCount - 1, 16);
+        if (delay > BACKOFF_MAX)
+            delay = BACKOFF_MAX;
+
+        delay = (long) (mRandom.nextDouble() * delay);
+
+        Log.i(TAG, "Retrying in " + delay + " ms");
+
+        try
+        {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException e)
+        {
+            return false;
+        }
+
+        return SystemSens.isPlugged();
+    }
+
+
+    /**
+     * Posts the given batch to the given destination.
+     * The records are expanded and encoded while the request body is
+     * written, so the encoded batch never exists as a whole in
+     * memory.
+     *
+     * @param   batch       batch of records
+     * @param   dest        destination URL
+     * @return              true if the server accepted the records
+     */
+    boolean doPost(UploadBatch batch, String dest) 
     {
         OutputStream out;
-        byte[] buff;
         int respCode;
         String respMsg = "";
         HttpURLConnection con;
@@ -257,7 +480,7 @@ public class Uploader
         {
             con.setRequestMethod("POST");
         }
-        catch (java.net.ProtocolException e)
+        catch (ProtocolException e)
         {
             Log.e(TAG, "Exception", e);
             return false;
@@ -265,16 +488,21 @@ public class Uploader
         con.setUseCaches(false);
         con.setDoOutput(true);
         con.setDoInput(true);
+        con.setChunkedStreamingMode(0);
         con.setRequestProperty("Content-type", 
                 "application/x-www-form-urlencoded");
+        if (mCompress)
+            con.setRequestProperty("Content-Encoding", "gzip");
 
         try
         {
             con.connect();
-            out = con.getOutputStream();
-            buff = content.getBytes("UTF8");
-            out.write(buff);
-            out.flush();
+            CountingOutputStream counter = new CountingOutputStream(
+                    con.getOutputStream());
+            out = counter;
+            writeBody(out, batch);
+            out.close();
+            batch.bytes = counter.getCount();
 
 
             respMsg = con.getResponseMessage();
@@ -303,4 +531,137 @@ public class Uploader
         }
     }
 
+
+    /**
+     * Writes the request body for the given batch. 
+     * The body has the same form as before streaming was introduced:
+     * "data=[r1, r2, ...]" where each record is URL encoded. If
+     * compression is enabled the body is gzip compressed.
+     *
+     * @param   out         request output stream
+     * @param   batch       batch of records
+     */
+    private void writeBody(OutputStream out, UploadBatch batch)
+        throws IOException
+    {
+        GZIPOutputStream gzip = null;
+
+        if (mCompress)
+        {
+            gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+            out = gzip;
+        }
+
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(out, "UTF8"), BUFFER_SIZE);
+
+        boolean firstRecord = true;
+        String record;
+
+        writer.write("data=[");
+
+        int count = batch.records.size();
+        for (int i = 0; i < count; i++)
+        {
+            record = expandRecord(batch.times[i], batch.types[i],
+                    batch.records.get(i));
+
+            if (record != null)
+            {
+                if (!firstRecord)
+                    writer.write(", ");
+                writer.write(URLEncoder.encode(record));
+                firstRecord = false;
+            }
+        }
+
+        writer.write("]");
+        writer.flush();
+
+        if (gzip != null)
+            gzip.finish();
+    }
+
+
+    /**
+     * Expands a stored record to the JSON string that is sent.
+     *
+     * @param   time        recordtime column of the record
+     * @param   typeId      recordtype column of the record
+     * @param   blob        datarecord column of the record
+     * @return              JSON string of the record, or null if the
+     *                      record could not be decoded
+     */
+    String expandRecord(long time, int typeId, byte[] blob)
+    {
+        return mDbAdaptor.expandRecord(time, typeId, blob);
+    }
+
+
+    /**
+     * A contiguous range of stored records that is posted in one
+     * request. 
+     */
+    static class UploadBatch
+    {
+        /** Compact records, as stored in the database */
+        final ArrayList<byte[]> records;
+
+        /** Time and type id of each record, from their columns */
+        final long[] times;
+        final int[] types;
+
+        /** Id range of the records, and the id the batch was read
+         * after */
+        long fromId;
+        long toId;
+        long afterId;
+
+        /** Batch size the records were read with */
+        int size;
+
+        /** Number of bytes sent for the batch */
+        long bytes;
+
+        UploadBatch(int capacity)
+        {
+            records = new ArrayList<byte[]>(capacity);
+            times = new long[capacity];
+            types = new int[capacity];
+        }
+    }
+
+
+    /**
+     * Output stream that counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long mCount = 0;
+
+        public CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        public long getCount()
+        {
+            return mCount;
+        }
+    }
+
 }
@@ -0,0 +1,198 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+package edu.ucla.cens.systemsens.util;
+
+
+/**
+ * Splits the battery budget among the work units of all the adaptive
+ * clients at once.
+ *
+ * Each unit is added with its cost (battery percent per unit of work
+ * from the power model), its recent demand in units per minute, and
+ * the horizon of its client. One solve then scales the demand of
+ * every unit by the same factor, so that the adaptive work together
+ * drains the battery at the rate that is left for it. Units without a
+ * known cost are not limited.
+ *
+ * The solver keeps its arrays between polls; adding a unit and
+ * solving are linear in the number of units.
+ *
+ * @author Hossein Falaki
+ */
+public class WorkloadSolver
+{
+    /** Largest increase of the work of a unit in one poll */
+    private static final double MAX_SCALE = 2.0;
+
+    private double[] mCost;
+    private double[] mDemand;
+    private double[] mHorizon;
+    private int mCount;
+
+    /** Factor applied to the demand of the units */
+    private double mScale;
+
+    /** Rate given to each unit that has no recent demand */
+    private double mShare;
+
+    /** Total drain rate of the adaptive work at its recent demand */
+    private double mAdaptiveRate;
+
+
+    public WorkloadSolver()
+    {
+        mCost = new double[16];
+        mDemand = new double[16];
+        mHorizon = new double[16];
+        reset();
+    }
+
+
+    /**
+     * Removes all the units, before the units of a new poll are added.
+     */
+    public void reset()
+    {
+        mCount = 0;
+        mScale = Double.NaN;
+        mShare = Double.NaN;
+        mAdaptiveRate = 0.0;
+    }
+
+
+    /**
+     * Adds a unit of work.
+     *
+     * @param   cost        battery percent per unit of work, NaN if not
+     *                      known
+     * @param   demand      recent work of the unit per minute
+     * @param   horizon     horizon of the client in minutes
+     * @return              index of the unit
+     */
+    public int add(double cost, double demand, double horizon)
+    {
+        if (mCount == mCost.length)
+        {
+            mCost = grow(mCost);
+            mDemand = grow(mDemand);
+            mHorizon = grow(mHorizon);
+        }
+
+        mCost[mCount] = cost;
+        mDemand[mCount] = demand;
+        mHorizon[mCount] = horizon;
+
+        if (!Double.isNaN(cost) && (cost > 0.0) && (demand > 0.0))
+            mAdaptiveRate += cost * demand;
+
+        return mCount++;
+    }
+
+    private static double[] grow(double[] array)
+    {
+        double[] bigger = new double[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+
+    /**
+     * Removes the units added after the first count ones, such as the
+     * units of a client that failed before it was read fully.
+     *
+     * @param   count       number of units to keep
+     */
+    public void truncate(int count)
+    {
+        if (count >= mCount)
+            return;
+
+        mCount = count;
+        mAdaptiveRate = 0.0;
+        for (int i = 0; i < mCount; i++)
+            if (!Double.isNaN(mCost[i]) && (mCost[i] > 0.0) 
+                    && (mDemand[i] > 0.0))
+                mAdaptiveRate += mCost[i] * mDemand[i];
+    }
+
+
+    /**
+     * Returns the number of units added since the last reset.
+     */
+    public int size()
+    {
+        return mCount;
+    }
+
+
+    /**
+     * Returns the drain rate of the adaptive work at its recent
+     * demand, in battery percent per minute.
+     */
+    public double getAdaptiveRate()
+    {
+        return mAdaptiveRate;
+    }
+
+
+    /**
+     * Computes the limits of all the units.
+     *
+     * @param   available   drain rate left for the adaptive work, in
+     *                      battery percent per minute, NaN if there is
+     *                      no budget
+     */
+    public void solve(double available)
+    {
+        if (Double.isNaN(available))
+        {
+            mScale = Double.NaN;
+            mShare = Double.NaN;
+            return;
+        }
+
+        if (available < 0.0)
+            available = 0.0;
+
+        if (mAdaptiveRate > 0.0)
+            mScale = Math.min(MAX_SCALE, available / mAdaptiveRate);
+        else
+            mScale = 0.0;
+
+        // Units with no recent work split what the others leave
+        int idle = 0;
+        for (int i = 0; i < mCount; i++)
+            if ((mDemand[i] <= 0.0) && !Double.isNaN(mCost[i])
+                    && (mCost[i] > 0.0))
+                idle++;
+
+        double left = available - mScale * mAdaptiveRate;
+        mShare = ((idle > 0) && (left > 0.0)) ? left / idle : 0.0;
+    }
+
+
+    /**
+     * Returns the work limit of a unit for the horizon of its client.
+     *
+     * @param   index       index of the unit
+     * @return              allowed units of work, NaN if not limited
+     */
+    public double getLimit(int index)
+    {
+        double cost = mCost[index];
+
+        if (Double.isNaN(mScale) || Double.isNaN(cost) || (cost <= 0.0))
+            return Double.NaN;
+
+        double rate;
+        if (mDemand[index] > 0.0)
+            rate = mScale * mDemand[index];
+        else
+            rate = mShare / cost;
+
+        return rate * mHorizon[index];
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.sensors;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Checks PidTable against a HashMap over random sampling rounds.
+ *
+ * @author Hossein Falaki
+ */
+public class PidTableTest extends TestCase
+{
+    public void testRounds()
+    {
+        Random random = new Random(1);
+        PidTable table = new PidTable(2);
+        HashMap<Integer, long[]> expected = new HashMap<Integer, long[]>();
+        HashMap<Integer, Integer> generations
+            = new HashMap<Integer, Integer>();
+        long[] values = new long[2];
+        long[] out = new long[2];
+
+        for (int generation = 1; generation <= 200; generation++)
+        {
+            // Process ids are reused and cluster in a small range, so
+            // runs of colliding entries form
+            int count = random.nextInt(400);
+            for (int i = 0; i < count; i++)
+            {
+                int pid = random.nextInt(2000);
+
+                if (random.nextBoolean() && table.touch(pid, generation))
+                {
+                    generations.put(pid, generation);
+                    continue;
+                }
+
+                values[0] = random.nextLong();
+                values[1] = pid;
+                table.put(pid, values, generation);
+                expected.put(pid, values.clone());
+                generations.put(pid, generation);
+            }
+
+            int keep = generation - random.nextInt(3);
+            int removed = table.evictOlderThan(keep);
+
+            int expectedRemoved = 0;
+            Iterator<Map.Entry<Integer, Integer>> entries
+                = generations.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<Integer, Integer> entry = entries.next();
+                if (entry.getValue() < keep)
+                {
+                    expected.remove(entry.getKey());
+                    entries.remove();
+                    expectedRemoved++;
+                }
+            }
+
+            assertEquals(expectedRemoved, removed);
+            assertEquals(expected.size(), table.size());
+
+            for (int pid = 0; pid < 2000; pid++)
+            {
+                long[] value = expected.get(pid);
+                assertEquals(value != null, table.get(pid, out));
+                if (value != null)
+                {
+                    assertEquals(value[0], out[0]);
+                    assertEquals(value[1], out[1]);
+                }
+            }
+        }
+    }
+
+    public void testEvictEmptiesTable()
+    {
+        PidTable table = new PidTable(1);
+        long[] values = new long[1];
+
+        for (int pid = 0; pid < 1000; pid++)
+            table.put(pid, values, 1);
+
+        assertEquals(1000, table.evictOlderThan(2));
+        assertEquals(0, table.size());
+        assertFalse(table.get(7, values));
+
+        table.put(7, values, 3);
+        assertTrue(table.get(7, values));
+    }
+}
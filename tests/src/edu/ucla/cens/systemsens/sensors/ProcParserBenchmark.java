@@ -0,0 +1,187 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.sensors;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Compares the time and the allocation of reading /proc/net/dev and
+ * /proc/meminfo with ProcParser against BufferedReader and
+ * String.split, as SystemSens read them before.
+ *
+ * Runs with the other tests of the test project, on the /proc files
+ * of the phone, and logs its results. To run it alone:
+ *
+ *   adb shell am instrument -w -e class \
+ *       edu.ucla.cens.systemsens.sensors.ProcParserBenchmark \
+ *       edu.ucla.cens.systemsens.tests/android.test.InstrumentationTestRunner
+ *
+ * @author Hossein Falaki
+ */
+public class ProcParserBenchmark extends TestCase
+{
+    private static final String TAG = "ProcParserBenchmark";
+
+    private static final String NETDEV = "/proc/net/dev";
+    private static final String MEMINFO = "/proc/meminfo";
+
+    private static final int WARMUP = 1000;
+    private static final int ROUNDS = 5000;
+
+    /** Keeps the results alive, so the reads are not optimized away */
+    private static long sSink;
+
+    private final ProcParser mParser = new ProcParser();
+    private final String[] mKeys = new String[64];
+
+
+    public void testCompare() throws IOException
+    {
+        for (int pass = 0; pass < 2; pass++)
+        {
+            boolean report = (pass == 1);
+            int rounds = report ? ROUNDS : WARMUP;
+
+            run("net/dev split", NETDEV, false, true, rounds, report);
+            run("net/dev ProcParser", NETDEV, true, true, rounds,
+                    report);
+            run("meminfo split", MEMINFO, false, false, rounds, report);
+            run("meminfo ProcParser", MEMINFO, true, false, rounds,
+                    report);
+        }
+    }
+
+
+    private void run(String name, String path, boolean parser,
+            boolean netDev, int rounds, boolean report) throws IOException
+    {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < rounds; i++)
+        {
+            if (parser)
+                sSink += netDev ? parseNetDev(path) : parseMemInfo(path);
+            else
+                sSink += netDev ? splitNetDev(path) : splitMemInfo(path);
+        }
+
+        long time = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        long bytes = Debug.getThreadAllocSize();
+
+        if (report)
+            Log.i(TAG, name + ": " + (time / rounds) + " ns/read, "
+                    + (bytes / rounds) + " bytes/read");
+    }
+
+
+    private long parseNetDev(String path) throws IOException
+    {
+        long sum = 0;
+
+        mParser.read(path);
+        mParser.nextLine();
+        mParser.nextLine();
+
+        for (int j = 0; !mParser.atEnd(); j++)
+        {
+            String name = mParser.nextTokenThrough(':', mKeys[j]);
+            if (name == null)
+            {
+                mParser.nextLine();
+                continue;
+            }
+            mKeys[j] = name;
+
+            sum += mParser.nextLong() + mParser.nextLong();
+            mParser.skipTokens(6);
+            sum += mParser.nextLong() + mParser.nextLong();
+            mParser.nextLine();
+        }
+
+        return sum;
+    }
+
+    private long parseMemInfo(String path) throws IOException
+    {
+        long sum = 0;
+
+        mParser.read(path);
+        for (int i = 0; !mParser.atEnd(); i++)
+        {
+            mKeys[i] = mParser.nextToken(mKeys[i]);
+            sum += mParser.nextLong();
+            mParser.nextLine();
+        }
+
+        return sum;
+    }
+
+    private static long splitNetDev(String path) throws IOException
+    {
+        long sum = 0;
+        String line;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(path)), 2048);
+        try
+        {
+            reader.readLine();
+            reader.readLine();
+
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(":");
+                String[] toks = parts[1].trim().split("\\s+");
+
+                sum += Long.parseLong(toks[0]) + Long.parseLong(toks[1])
+                    + Long.parseLong(toks[8]) + Long.parseLong(toks[9]);
+                sum += parts[0].trim().length();
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return sum;
+    }
+
+    private static long splitMemInfo(String path) throws IOException
+    {
+        long sum = 0;
+        String line;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(path)), 2048);
+        try
+        {
+            while ((line = reader.readLine()) != null)
+            {
+                String[] toks = line.trim().split("\\s+");
+                sum += Long.parseLong(toks[1]) + toks[0].length();
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.sensors;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Checks ProcParser against the String.split parsing it replaced, on
+ * /proc files captured from a phone.
+ *
+ * The samples are written to temporary files, so the results do not
+ * depend on the phone the test runs on.
+ *
+ * @author Hossein Falaki
+ */
+public class ProcParserTest extends TestCase
+{
+    static final String STAT =
+        "cpu  74608 2520 24433 1117073 6176 4054 0 0 0 0\n"
+        + "cpu0 74608 2520 24433 1117073 6176 4054 0 0 0 0\n"
+        + "intr 3462929 17 0 0 0 0 0 0 0 1 0 0 0 0 0 0 0 0 0\n"
+        + "ctxt 5327391\n"
+        + "btime 1297292911\n"
+        + "processes 12857\n"
+        + "procs_running 1\n"
+        + "procs_blocked 0\n";
+
+    static final String MEMINFO =
+        "MemTotal:         418612 kB\n"
+        + "MemFree:           14508 kB\n"
+        + "Buffers:            1100 kB\n"
+        + "Cached:            99440 kB\n"
+        + "SwapCached:            0 kB\n"
+        + "Active:           216404 kB\n"
+        + "Inactive:         134812 kB\n"
+        + "Active(anon):     143208 kB\n"
+        + "Inactive(anon):   108332 kB\n"
+        + "Active(file):      73196 kB\n"
+        + "Inactive(file):    26480 kB\n"
+        + "Unevictable:        1404 kB\n"
+        + "Mlocked:               0 kB\n"
+        + "SwapTotal:             0 kB\n"
+        + "SwapFree:              0 kB\n"
+        + "Dirty:                 0 kB\n"
+        + "Writeback:             0 kB\n"
+        + "AnonPages:        252124 kB\n"
+        + "Mapped:            64236 kB\n"
+        + "Slab:              12996 kB\n"
+        + "VmallocTotal:     446464 kB\n";
+
+    static final String NETDEV =
+        "Inter-|   Receive                                                |  Transmit\n"
+        + " face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n"
+        + "    lo:  103364    1306    0    0    0     0          0         0   103364    1306    0    0    0     0       0          0\n"
+        + "dummy0:       0       0    0    0    0     0          0         0        0       0    0    0    0     0       0          0\n"
+        + "rmnet0:12403812   13842    0    0    0     0          0         0  1620394   15234    0    0    0     0       0          0\n"
+        + "  eth0:4294967295 2837461    0    3    0     0          0        12 98765432  453621    0    0    0     0       0          0\n";
+
+    private File mStat, mMemInfo, mNetDev;
+
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        mStat = write("stat", STAT);
+        mMemInfo = write("meminfo", MEMINFO);
+        mNetDev = write("netdev", NETDEV);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        mStat.delete();
+        mMemInfo.delete();
+        mNetDev.delete();
+    }
+
+    static File write(String name, String contents) throws IOException
+    {
+        File file = File.createTempFile(name, ".txt");
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(contents.getBytes("US-ASCII"));
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+
+    public void testStat() throws IOException
+    {
+        ProcParser parser = new ProcParser();
+        parser.read(mStat.getPath());
+
+        List<String> expected = splitStat(STAT);
+        List<String> actual = new ArrayList<String>();
+
+        do
+        {
+            if (parser.matchWord("cpu"))
+            {
+                actual.add(Long.toString(parser.nextLong()));
+                actual.add(Long.toString(parser.nextLong()));
+                actual.add(Long.toString(parser.nextLong()));
+                actual.add(Long.toString(parser.nextLong()));
+            }
+            else if (parser.matchWord("ctxt")
+                    || parser.matchWord("btime")
+                    || parser.matchWord("processes"))
+            {
+                actual.add(Long.toString(parser.nextLong()));
+            }
+        }
+        while (parser.nextLine());
+
+        assertEquals(expected, actual);
+    }
+
+    public void testMemInfo() throws IOException
+    {
+        ProcParser parser = new ProcParser();
+        String[] keys = new String[64];
+
+        // The second read reuses the keys of the first
+        for (int pass = 0; pass < 2; pass++)
+        {
+            parser.read(mMemInfo.getPath());
+
+            List<String> expected = splitMemInfo(MEMINFO);
+            List<String> actual = new ArrayList<String>();
+
+            for (int i = 0; !parser.atEnd(); i++)
+            {
+                String key = parser.nextToken(keys[i]);
+                long value = parser.nextLong();
+                parser.nextLine();
+
+                if (pass == 1)
+                    assertSame(keys[i], key);
+                keys[i] = key;
+
+                actual.add(key);
+                actual.add(Long.toString(value));
+            }
+
+            assertEquals(expected, actual);
+        }
+    }
+
+    public void testNetDev() throws IOException
+    {
+        ProcParser parser = new ProcParser();
+        parser.read(mNetDev.getPath());
+
+        List<String> expected = splitNetDev(NETDEV);
+        List<String> actual = new ArrayList<String>();
+
+        parser.nextLine();
+        parser.nextLine();
+
+        while (!parser.atEnd())
+        {
+            String name = parser.nextTokenThrough(':', null);
+            if (name == null)
+            {
+                parser.nextLine();
+                continue;
+            }
+
+            actual.add(name);
+            actual.add(Long.toString(parser.nextLong()));
+            actual.add(Long.toString(parser.nextLong()));
+            parser.skipTokens(6);
+            actual.add(Long.toString(parser.nextLong()));
+            actual.add(Long.toString(parser.nextLong()));
+            parser.nextLine();
+        }
+
+        assertEquals(expected, actual);
+    }
+
+    public void testProcessStat() throws IOException
+    {
+        // The command name may contain spaces and parentheses
+        File file = write("pidstat",
+                "1234 (my (app) x) S 95 95 0 0 -1 4194624 9711 0 117 0 "
+                + "1893 457 0 0 20 0 9 0 2847 178921472 9854\n");
+
+        try
+        {
+            ProcParser parser = new ProcParser();
+            parser.read(file.getPath());
+
+            assertTrue(parser.skipPastLast(')'));
+            parser.skipTokens(11);
+            assertEquals(1893, parser.nextLong());
+            assertEquals(457, parser.nextLong());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * The values SystemSens took from /proc/stat before ProcParser:
+     * user, nice, system and idle of the cpu line, then ctxt, btime and
+     * processes.
+     */
+    static List<String> splitStat(String contents)
+    {
+        List<String> values = new ArrayList<String>();
+
+        for (String line : contents.split("\n"))
+        {
+            String[] toks = line.split(" ");
+
+            if (toks[0].equals("cpu"))
+            {
+                values.add(toks[2]);
+                values.add(toks[3]);
+                values.add(toks[4]);
+                values.add(toks[5]);
+            }
+            else if (toks[0].equals("ctxt") || toks[0].equals("btime")
+                    || toks[0].equals("processes"))
+            {
+                values.add(toks[1]);
+            }
+        }
+
+        return values;
+    }
+
+    static List<String> splitMemInfo(String contents)
+    {
+        List<String> values = new ArrayList<String>();
+
+        for (String line : contents.split("\n"))
+        {
+            String[] toks = line.trim().split("\\s+");
+            values.add(toks[0]);
+            values.add(toks[1]);
+        }
+
+        return values;
+    }
+
+    static List<String> splitNetDev(String contents)
+    {
+        List<String> values = new ArrayList<String>();
+        String[] lines = contents.split("\n");
+
+        for (int i = 2; i < lines.length; i++)
+        {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            String[] toks = line.substring(colon + 1).trim().split("\\s+");
+
+            values.add(line.substring(0, colon + 1).trim());
+            values.add(toks[0]);
+            values.add(toks[1]);
+            values.add(toks[8]);
+            values.add(toks[9]);
+        }
+
+        return values;
+    }
+}
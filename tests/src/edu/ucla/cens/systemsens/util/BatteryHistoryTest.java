@@ -0,0 +1,88 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.util;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Checks that BatteryHistory keeps the latest samples in order and
+ * drops the oldest one when it is full.
+ *
+ * @author Hossein Falaki
+ */
+public class BatteryHistoryTest extends TestCase
+{
+    private static final int CAPACITY = 8;
+
+
+    public void testOrder()
+    {
+        BatteryHistory history = new BatteryHistory(CAPACITY);
+        assertTrue(history.isEmpty());
+
+        for (int i = 0; i < CAPACITY - 3; i++)
+            add(history, i);
+
+        check(history, 0, CAPACITY - 3);
+    }
+
+    public void testEviction()
+    {
+        BatteryHistory history = new BatteryHistory(CAPACITY);
+
+        for (int i = 0; i < 3 * CAPACITY + 5; i++)
+        {
+            add(history, i);
+            check(history, Math.max(0, i + 1 - CAPACITY), i + 1);
+        }
+    }
+
+    public void testClear()
+    {
+        BatteryHistory history = new BatteryHistory(CAPACITY);
+
+        for (int i = 0; i < CAPACITY + 3; i++)
+            add(history, i);
+
+        history.clear();
+        assertTrue(history.isEmpty());
+
+        add(history, 100);
+        add(history, 101);
+        check(history, 100, 102);
+    }
+
+
+    private static void add(BatteryHistory history, int i)
+    {
+        history.add(1000L * i, 3700 + i, 100 - i, 200L + i);
+    }
+
+    /**
+     * Checks the history holds the samples from first to end,
+     * exclusive.
+     */
+    private static void check(BatteryHistory history, int first, int end)
+    {
+        assertEquals(end - first, history.size());
+
+        for (int i = 0; i < history.size(); i++)
+        {
+            int sample = first + i;
+            assertEquals(1000L * sample, history.getTime(i));
+            assertEquals(3700 + sample, history.getVoltage(i));
+            assertEquals(100 - sample, history.getLevel(i));
+            assertEquals(200L + sample, history.getCurrent(i));
+        }
+
+        assertEquals(1000L * (end - 1), history.getLatestTime());
+        assertEquals(3700 + end - 1, history.getLatestVoltage());
+        assertEquals(100 - end + 1, history.getLatestLevel());
+        assertEquals(200L + end - 1, history.getLatestCurrent());
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Runs DrainRateEstimator on a simulated discharge: the battery drains
+ * in proportion to the power drawn, the level is reported in whole
+ * percents once a minute, and the current has measurement noise.
+ *
+ * @author Hossein Falaki
+ */
+public class DrainRateEstimatorTest extends TestCase
+{
+    private static final long ONE_MINUTE = 60 * 1000;
+    private static final int VOLTAGE = 3800;
+
+    /** Drain in percent per minute for each watt drawn */
+    private static final double DRAIN_PER_WATT = 0.2;
+
+    /** Minutes of the simulation, and the minute the power steps up */
+    private static final int LENGTH = 400;
+    private static final int STEP = 200;
+    private static final double LOW_POWER = 0.5;
+    private static final double HIGH_POWER = 1.5;
+
+
+    /**
+     * Simulated discharge. Each call of next() moves one minute ahead
+     * and feeds the sample to the estimator.
+     */
+    private static class Discharge
+    {
+        private final Random mRandom;
+        private final boolean mWithCurrent;
+        private double mLevel = 95.0;
+        private int mMinute = 0;
+
+        Discharge(long seed, boolean withCurrent)
+        {
+            mRandom = new Random(seed);
+            mWithCurrent = withCurrent;
+        }
+
+        double power(int minute)
+        {
+            return (minute < STEP) ? LOW_POWER : HIGH_POWER;
+        }
+
+        double rate(int minute)
+        {
+            return DRAIN_PER_WATT * power(minute);
+        }
+
+        void next(DrainRateEstimator estimator)
+        {
+            next(estimator, null);
+        }
+
+        /**
+         * Also adds the sample to the history, and feeds the estimator
+         * from it.
+         */
+        void next(DrainRateEstimator estimator, BatteryHistory history)
+        {
+            double power = power(mMinute);
+            mLevel -= rate(mMinute);
+            mMinute++;
+
+            long current = 0;
+            if (mWithCurrent)
+                current = Math.round(power / VOLTAGE * 1e6
+                        * (1.0 + 0.05 * mRandom.nextGaussian()));
+
+            int level = (int) Math.ceil(mLevel);
+            if (history == null)
+            {
+                estimator.add(mMinute * ONE_MINUTE, VOLTAGE, level,
+                        current);
+            }
+            else
+            {
+                history.add(mMinute * ONE_MINUTE, VOLTAGE, level,
+                        current);
+                estimator.update(history);
+            }
+        }
+
+        int getMinute()
+        {
+            return mMinute;
+        }
+    }
+
+
+    public void testReady()
+    {
+        DrainRateEstimator estimator = new DrainRateEstimator();
+        Discharge discharge = new Discharge(1, true);
+
+        assertFalse(estimator.isReady());
+        assertTrue(Double.isNaN(estimator.getRate()));
+
+        for (int i = 0; i < 9; i++)
+            discharge.next(estimator);
+        assertFalse(estimator.isReady());
+
+        discharge.next(estimator);
+        discharge.next(estimator);
+        assertTrue(estimator.isReady());
+
+        estimator.reset();
+        assertFalse(estimator.isReady());
+        assertEquals(0, estimator.getCount());
+    }
+
+    /**
+     * Once ready, an estimator warmed up from the history is closer to
+     * the true rate than one that only saw the samples once.
+     */
+    public void testWarmUp()
+    {
+        double coldError = 0.0, warmError = 0.0;
+
+        for (long seed = 30; seed < 50; seed++)
+        {
+            DrainRateEstimator cold = new DrainRateEstimator();
+            DrainRateEstimator warm = new DrainRateEstimator();
+            BatteryHistory history = new BatteryHistory(64);
+            Discharge coldDischarge = new Discharge(seed, true);
+            Discharge warmDischarge = new Discharge(seed, true);
+
+            while (!warm.isReady())
+            {
+                coldDischarge.next(cold);
+                warmDischarge.next(warm, history);
+            }
+            assertEquals(cold.getCount(), warm.getCount());
+
+            double rate = warmDischarge.rate(warmDischarge.getMinute() - 1);
+            coldError += Math.abs(cold.getRate() - rate);
+            warmError += Math.abs(warm.getRate() - rate);
+        }
+
+        assertTrue("cold " + coldError + ", warm " + warmError,
+                warmError < coldError);
+    }
+
+    public void testConverges()
+    {
+        for (int withCurrent = 0; withCurrent < 2; withCurrent++)
+        {
+            DrainRateEstimator estimator = new DrainRateEstimator();
+            Discharge discharge = new Discharge(2, withCurrent == 1);
+
+            while (discharge.getMinute() < STEP)
+                discharge.next(estimator);
+
+            assertEquals(DRAIN_PER_WATT * LOW_POWER, estimator.getRate(),
+                    0.03);
+
+            while (discharge.getMinute() < LENGTH)
+                discharge.next(estimator);
+
+            assertEquals(DRAIN_PER_WATT * HIGH_POWER,
+                    estimator.getRate(), 0.03);
+        }
+    }
+
+    /**
+     * The power shows the step of the drain rate before the level
+     * does.
+     */
+    public void testFollowsPower()
+    {
+        DrainRateEstimator withPower = new DrainRateEstimator();
+        DrainRateEstimator withoutPower = new DrainRateEstimator();
+        Discharge first = new Discharge(3, true);
+        Discharge second = new Discharge(3, false);
+
+        while (first.getMinute() < STEP + 3)
+        {
+            first.next(withPower);
+            second.next(withoutPower);
+        }
+
+        double expected = DRAIN_PER_WATT * HIGH_POWER;
+        assertEquals(expected, withPower.getRate(), 0.05);
+        assertTrue(Math.abs(withPower.getRate() - expected)
+                < Math.abs(withoutPower.getRate() - expected) / 2.0);
+    }
+
+    /**
+     * The power only tells how the rate changes, so it does not make
+     * the estimate surer than the level samples alone.
+     */
+    public void testPowerAddsNoCertainty()
+    {
+        for (long seed = 10; seed < 20; seed++)
+        {
+            DrainRateEstimator withPower = new DrainRateEstimator();
+            DrainRateEstimator withoutPower = new DrainRateEstimator();
+            Discharge first = new Discharge(seed, true);
+            Discharge second = new Discharge(seed, false);
+
+            while (first.getMinute() < LENGTH)
+            {
+                first.next(withPower);
+                second.next(withoutPower);
+            }
+
+            assertTrue(withPower.getRateStdDev() 
+                    >= withoutPower.getRateStdDev());
+        }
+    }
+
+    /**
+     * The confidence interval holds the true rate about as often as it
+     * claims to. The power must not make the interval narrower than
+     * the samples justify.
+     */
+    public void testCoverage()
+    {
+        int inside = 0, total = 0;
+
+        for (long seed = 10; seed < 30; seed++)
+        {
+            DrainRateEstimator estimator = new DrainRateEstimator();
+            Discharge discharge = new Discharge(seed, true);
+
+            while (discharge.getMinute() < LENGTH)
+            {
+                discharge.next(estimator);
+
+                int minute = discharge.getMinute();
+                if ((minute < 60) || (Math.abs(minute - STEP) < 20))
+                    continue;
+
+                double rate = discharge.rate(minute - 1);
+                if ((estimator.getLowerBound() <= rate)
+                        && (rate <= estimator.getUpperBound()))
+                    inside++;
+                total++;
+            }
+        }
+
+        double coverage = (double) inside / total;
+        assertTrue("coverage " + coverage, coverage >= 0.85);
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * SystemSens
+ *
+ * Copyright (C) 2011 Hossein Falaki
+ */
+
+package edu.ucla.cens.systemsens.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Posts batches to a server on the loopback interface and checks the
+ * request as it arrives: chunked, gzip compressed if enabled, and
+ * with the same body as before streaming was introduced.
+ *
+ * Records are expanded by the test instead of the database adaptor,
+ * so the test needs no database.
+ *
+ * @author Hossein Falaki
+ */
+public class UploaderTest extends TestCase
+{
+    /** Records this many are spread over several chunks */
+    private static final int COUNT = 500;
+
+    /** Type id of the records the test cannot expand */
+    private static final int BAD_TYPE = -1;
+
+
+    /**
+     * Uploader that expands records without a database.
+     */
+    private static class TestUploader extends Uploader
+    {
+        TestUploader(String url, boolean compress)
+        {
+            super(null, url, compress);
+        }
+
+        @Override
+        String expandRecord(long time, int typeId, byte[] blob)
+        {
+            return expand(time, typeId, blob);
+        }
+    }
+
+
+    /**
+     * Accepts one request, keeps its headers and its decoded body and
+     * answers with the given status.
+     */
+    private static class LocalServer extends Thread
+    {
+        private final ServerSocket mSocket;
+        private final int mStatus;
+
+        final HashMap<String, String> headers
+            = new HashMap<String, String>();
+        byte[] body;
+        long wireBytes;
+        IOException error;
+
+        LocalServer(int status) throws IOException
+        {
+            mSocket = new ServerSocket(0);
+            mStatus = status;
+        }
+
+        String getUrl()
+        {
+            return "http://127.0.0.1:" + mSocket.getLocalPort()
+                + "/put/";
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Socket client = mSocket.accept();
+                try
+                {
+                    InputStream in = client.getInputStream();
+                    readHeaders(in);
+                    body = readChunks(in);
+
+                    OutputStream out = client.getOutputStream();
+                    out.write(("HTTP/1.1 " + mStatus + " Status\r\n"
+                                + "Content-Length: 0\r\n"
+                                + "Connection: close\r\n\r\n")
+                            .getBytes("US-ASCII"));
+                    out.flush();
+                }
+                finally
+                {
+                    client.close();
+                }
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+            finally
+            {
+                try
+                {
+                    mSocket.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing left to clean up
+                }
+            }
+        }
+
+        private void readHeaders(InputStream in) throws IOException
+        {
+            String line = readLine(in);
+            headers.put("", line);
+
+            while ((line = readLine(in)).length() > 0)
+            {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        private byte[] readChunks(InputStream in) throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            while (true)
+            {
+                String line = readLine(in);
+                int semicolon = line.indexOf(';');
+                if (semicolon >= 0)
+                    line = line.substring(0, semicolon);
+
+                int size = Integer.parseInt(line.trim(), 16);
+                if (size == 0)
+                    break;
+
+                byte[] chunk = new byte[size];
+                int read = 0;
+                while (read < size)
+                {
+                    int n = in.read(chunk, read, size - read);
+                    if (n < 0)
+                        throw new IOException("Truncated chunk");
+                    read += n;
+                }
+                out.write(chunk);
+                wireBytes += size;
+                readLine(in);
+            }
+
+            // Trailer
+            while (readLine(in).length() > 0)
+                ;
+
+            return out.toByteArray();
+        }
+
+        private static String readLine(InputStream in) throws IOException
+        {
+            StringBuilder sb = new StringBuilder();
+            int c;
+
+            while ((c = in.read()) != '\n')
+            {
+                if (c < 0)
+                    throw new IOException("Connection closed");
+                if (c != '\r')
+                    sb.append((char) c);
+            }
+
+            return sb.toString();
+        }
+    }
+
+
+    public void testChunked() throws Exception
+    {
+        roundTrip(false);
+    }
+
+    public void testGzip() throws Exception
+    {
+        roundTrip(true);
+    }
+
+    public void testRejected() throws Exception
+    {
+        LocalServer server = new LocalServer(500);
+        server.start();
+
+        Uploader uploader = new TestUploader(server.getUrl(), false);
+        assertFalse(uploader.doPost(createBatch(), server.getUrl()));
+
+        server.join();
+        assertNull(server.error);
+    }
+
+
+    private void roundTrip(boolean compress) throws Exception
+    {
+        LocalServer server = new LocalServer(200);
+        server.start();
+
+        Uploader uploader = new TestUploader(server.getUrl(), compress);
+        Uploader.UploadBatch batch = createBatch();
+        assertTrue(uploader.doPost(batch, server.getUrl()));
+
+        server.join();
+        assertNull(server.error);
+
+        assertTrue(server.headers.get("").startsWith("POST /put/ "));
+        assertEquals("chunked", server.headers.get("transfer-encoding"));
+        assertEquals(compress ? "gzip" : null,
+                server.headers.get("content-encoding"));
+        assertEquals(server.wireBytes, batch.bytes);
+
+        byte[] body = server.body;
+        if (compress)
+            body = gunzip(body);
+
+        assertEquals(expectedBody(batch), new String(body, "UTF-8"));
+    }
+
+    private static Uploader.UploadBatch createBatch() throws Exception
+    {
+        Uploader.UploadBatch batch = new Uploader.UploadBatch(COUNT);
+
+        for (int i = 0; i < COUNT; i++)
+        {
+            batch.times[i] = 1300000000000L + i * 1000L;
+            batch.types[i] = (i % 97 == 0) ? BAD_TYPE : i % 7;
+            batch.records.add(("{\"value\":" + i
+                        + ",\"name\":\"r\u00e9cord & co\"}")
+                    .getBytes("UTF-8"));
+        }
+
+        return batch;
+    }
+
+    private static String expand(long time, int typeId, byte[] blob)
+    {
+        if (typeId == BAD_TYPE)
+            return null;
+
+        try
+        {
+            return "{\"time_stamp\":" + time + ",\"type\":" + typeId
+                + ",\"data\":" + new String(blob, "UTF-8") + "}";
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the body the server should receive: the records that
+     * could be expanded, each URL encoded.
+     */
+    private static String expectedBody(Uploader.UploadBatch batch)
+    {
+        StringBuilder sb = new StringBuilder("data=[");
+        boolean first = true;
+
+        for (int i = 0; i < batch.records.size(); i++)
+        {
+            String record = expand(batch.times[i], batch.types[i],
+                    batch.records.get(i));
+            if (record == null)
+                continue;
+
+            if (!first)
+                sb.append(", ");
+            sb.append(URLEncoder.encode(record));
+            first = false;
+        }
+
+        return sb.append(']').toString();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException
+    {
+        GZIPInputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+
+        in.close();
+        return out.toByteArray();
+    }
+}